@@ -30,7 +30,8 @@ public class CidGui extends JFrame {
     private ModernButton decryptButton;
     private ModernButton clearButton;
     private ModernButton copyButton;
-    private JLabel titleLabel, inputLabel, outputLabel, keyLabel;
+    private GlitchLabel titleLabel; // See Java_GlitchEffect_Modular.java, compiled along with this file
+    private JLabel inputLabel, outputLabel, keyLabel;
     private JPanel mainPanel, headerPanel, contentPanel, footerPanel;
     private JLabel statusLabel;
 
@@ -86,10 +87,11 @@ public class CidGui extends JFrame {
         header.setOpaque(false);
         header.setBorder(new EmptyBorder(20, 30, 20, 30));
         
-        titleLabel = new JLabel("CID ENCRYPTION DASHBOARD");
+        titleLabel = new GlitchLabel();
         titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 28));
         titleLabel.setForeground(TEXT_PRIMARY);
         titleLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        titleLabel.play("CID ENCRYPTION DASHBOARD"); // Glitches in when the window opens
         
         JLabel subtitleLabel = new JLabel("Professional Text Encryption & Decryption Suite");
         subtitleLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
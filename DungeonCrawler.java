@@ -1,13 +1,64 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+import com.sun.management.ThreadMXBean;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 /**
  * Enhanced Rogue-like Dungeon Crawler with modern graphics and smooth animations
@@ -15,51 +66,3759 @@ import java.util.Random;
 public class DungeonCrawler extends JFrame {
 
     private GamePanel gamePanel;
+    private GameCanvas gameCanvas;
 
     public DungeonCrawler() {
+        this(new Settings());
+    }
+
+    public DungeonCrawler(Settings settings) {
         setTitle("Enhanced Dungeon Crawler");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setResizable(false);
 
-        gamePanel = new GamePanel();
-        add(gamePanel);
+        gamePanel = new GamePanel(settings);
+        if (settings.activeRendering) {
+            gameCanvas = new GameCanvas(gamePanel, settings.targetFps);
+            add(gameCanvas);
+        } else {
+            add(gamePanel);
+        }
+
+        pack();
+        setLocationRelativeTo(null);
+        setVisible(true);
+
+        if (gameCanvas != null) {
+            gameCanvas.start();
+        }
+    }
+
+    public static void main(String[] args) {
+        Settings settings = Settings.parse(args);
+        if (settings.benchmark != null) {
+            System.setProperty("java.awt.headless", "true"); // Frames are drawn into images, never shown
+            try {
+                Benchmark.run(settings, System.out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        try {
+            // Corrected method name to get the system's look and feel class name as a string
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (settings.simulateGames > 0) {
+            Simulation.run(settings, System.out);
+            return;
+        }
+        if (settings.replayFile != null && settings.headless) {
+            try {
+                Replay.run(settings, System.out);
+            } catch (IOException e) {
+                System.err.println("Can't replay " + settings.replayFile + ": " + e.getMessage());
+            }
+            return;
+        }
+        SwingUtilities.invokeLater(() -> new DungeonCrawler(settings));
+    }
+
+    /**
+     * Command line options.
+     */
+    static class Settings {
+        static final int MAX_MAP_SIZE = 4096;
+
+        boolean activeRendering = false; // --active: BufferStrategy render loop instead of Swing repaints
+        int targetFps = 60;              // --fps=N: frame rate cap for active rendering
+        int mapWidth = 35;               // --size=WxH: map size in tiles, the view scrolls when it's bigger than the window
+        int mapHeight = 22;
+        boolean endless = false;         // --endless: one infinite world streamed in chunks instead of fixed levels
+        int stressMonsters = 0;          // --monsters=N: N extra monsters on every level, for stress testing
+        long seed = new Random().nextLong(); // --seed=N: the same seed and moves play out the same game
+        int simulateGames = 0;           // --simulate=N: no window, a bot plays N games and prints statistics
+        Path saveFile = Path.of("dungeoncrawler.sav"); // --save=FILE: F5/F9 and the quick-save on every new level
+        Path journalFile = Path.of("dungeoncrawler.journal"); // --journal=FILE: where this session's commands go
+        Path replayFile = null;          // --replay=FILE: plays a journal back instead of a new game
+        int seekTo = -1;                 // --seek=N: start the replay after N inputs
+        boolean headless = false;        // --headless: with --replay, no window, as fast as possible
+        String benchmark = null;         // --benchmark[=NAME]: no window, times the hot paths (those with NAME in their name)
+
+        static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                if (arg.equals("--active")) {
+                    settings.activeRendering = true;
+                } else if (arg.equals("--endless")) {
+                    settings.endless = true;
+                } else if (arg.startsWith("--monsters=")) {
+                    settings.stressMonsters = Math.max(0, Integer.parseInt(arg.substring("--monsters=".length())));
+                } else if (arg.startsWith("--journal=")) {
+                    settings.journalFile = Path.of(arg.substring("--journal=".length()));
+                } else if (arg.startsWith("--replay=")) {
+                    settings.replayFile = Path.of(arg.substring("--replay=".length()));
+                } else if (arg.startsWith("--seek=")) {
+                    settings.seekTo = Math.max(0, Integer.parseInt(arg.substring("--seek=".length())));
+                } else if (arg.equals("--benchmark")) {
+                    settings.benchmark = "";
+                } else if (arg.startsWith("--benchmark=")) {
+                    settings.benchmark = arg.substring("--benchmark=".length());
+                } else if (arg.equals("--headless")) {
+                    settings.headless = true;
+                } else if (arg.startsWith("--save=")) {
+                    settings.saveFile = Path.of(arg.substring("--save=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    settings.seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--simulate=")) {
+                    settings.simulateGames = Math.max(0, Integer.parseInt(arg.substring("--simulate=".length())));
+                } else if (arg.startsWith("--fps=")) {
+                    settings.targetFps = Integer.parseInt(arg.substring("--fps=".length()));
+                } else if (arg.startsWith("--size=")) {
+                    String[] size = arg.substring("--size=".length()).split("x");
+                    settings.mapWidth = clampMapSize(Integer.parseInt(size[0]));
+                    settings.mapHeight = clampMapSize(Integer.parseInt(size[1]));
+                }
+            }
+            return settings;
+        }
+
+        private static int clampMapSize(int size) {
+            return Math.max(12, Math.min(MAX_MAP_SIZE, size));
+        }
+    }
+
+    /**
+     * The dungeon map, one byte per tile in a flat row-major array instead of an object reference per tile.
+     * Anything outside the map counts as wall. Alongside, one bit per tile for whether the player has
+     * seen it yet.
+     */
+    static class TileMap {
+        static final byte WALL = 0;
+        static final byte FLOOR = 1;
+
+        final int width, height;
+        private final byte[] tiles;
+        private final long[] explored;
+
+        TileMap(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.tiles = new byte[width * height]; // All WALL
+            this.explored = new long[(width * height + 63) / 64];
+        }
+
+        boolean inBounds(int x, int y) {
+            return x >= 0 && y >= 0 && x < width && y < height;
+        }
+
+        byte get(int x, int y) {
+            return inBounds(x, y) ? tiles[y * width + x] : WALL;
+        }
+
+        boolean isFloor(int x, int y) {
+            return get(x, y) == FLOOR;
+        }
+
+        void set(int x, int y, byte tile) {
+            tiles[y * width + x] = tile;
+        }
+
+        boolean isExplored(int x, int y) {
+            int i = y * width + x;
+            return inBounds(x, y) && (explored[i >> 6] & (1L << i)) != 0;
+        }
+
+        void setExplored(int x, int y) {
+            int i = y * width + x;
+            if (inBounds(x, y)) explored[i >> 6] |= 1L << i;
+        }
+
+        /**
+         * @return true if every tile of the rectangle is WALL
+         */
+        boolean isSolid(int x, int y, int w, int h) {
+            for (int row = y; row < y + h; row++) {
+                int start = row * width + x;
+                for (int i = start; i < start + w; i++) {
+                    if (tiles[i] != WALL) return false;
+                }
+            }
+            return true;
+        }
+
+        void fill(int x, int y, int w, int h, byte tile) {
+            for (int row = y; row < y + h; row++) {
+                Arrays.fill(tiles, row * width + x, row * width + x + w, tile);
+            }
+        }
+
+        /**
+         * @return one bit per tile, set for floor, laid out like explored
+         */
+        long[] floorBits() {
+            return SaveFile.packTiles(tiles, explored.length);
+        }
+
+        /**
+         * Clears in floor, as returned by {@link #floorBits}, the bit of every floor tile reachable from
+         * (x, y). Whatever is still set afterwards can't be reached from there, and filling again from another
+         * tile only visits what is new. Works a word at a time: a run of floor in a row is found and cleared
+         * with a few masks, and only the starts of the runs touching it in the rows above and below go on the
+         * stack, so the fill costs about one step per run rather than per tile.
+         */
+        void floodFill(int x, int y, long[] floor) {
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = y * width + x;
+            while (top > 0) {
+                int i = stack[--top];
+                if ((floor[i >> 6] & (1L << i)) == 0) continue;
+                int row = i - i % width, rowEnd = row + width - 1;
+
+                int w = i >> 6;
+                long walls = ~floor[w] & (-1L << i);
+                while (walls == 0 && (w + 1) << 6 <= rowEnd) walls = ~floor[++w];
+                int right = walls == 0 ? rowEnd : Math.min(rowEnd, (w << 6) + Long.numberOfTrailingZeros(walls) - 1);
+                w = i >> 6;
+                walls = ~floor[w] & (-1L >>> (63 - (i & 63)));
+                while (walls == 0 && w << 6 > row) walls = ~floor[--w];
+                int left = walls == 0 ? row : Math.max(row, (w << 6) + 64 - Long.numberOfLeadingZeros(walls));
+
+                for (w = left >> 6; w <= right >> 6; w++) {
+                    long mask = -1L;
+                    if (w == left >> 6) mask &= -1L << left;
+                    if (w == right >> 6) mask &= -1L >>> (63 - (right & 63));
+                    floor[w] &= ~mask;
+                }
+
+                for (int next = row - width; next <= row + width; next += 2 * width) {
+                    if (next < 0 || next >= width * height) continue;
+                    int from = left - row + next, to = right - row + next;
+                    long previous = 0;
+                    for (w = from >> 6; w <= to >> 6; w++) {
+                        long bits = floor[w];
+                        if (w == from >> 6) bits &= -1L << from;
+                        if (w == to >> 6) bits &= -1L >>> (63 - (to & 63));
+                        long starts = bits & ~(bits << 1 | previous);
+                        previous = bits >>> 63;
+                        for (; starts != 0; starts &= starts - 1) {
+                            if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                            stack[top++] = (w << 6) + Long.numberOfTrailingZeros(starts);
+                        }
+                    }
+                }
+            }
+        }
+
+        TileMap copy() {
+            TileMap copy = new TileMap(width, height);
+            System.arraycopy(tiles, 0, copy.tiles, 0, tiles.length);
+            System.arraycopy(explored, 0, copy.explored, 0, explored.length);
+            return copy;
+        }
+    }
+
+    /**
+     * Monsters or items as a structure of arrays: one primitive column per field instead of an object per
+     * entity, so a pass over thousands of monsters streams through a few int arrays. An entity is just its
+     * slot number. Removing swaps the last entity into the hole, so slots of other entities can change:
+     * anything keeping slots around (TileIndex) has to follow the move.
+     */
+    static class EntityStore {
+        static final byte MONSTER = 0;
+        static final byte HEALTH_ELIXIR = 1;
+        static final byte POWER_CRYSTAL = 2;
+
+        int size;
+        byte[] type;
+        int[] x, y;
+        int[] hp, maxHp, attack;
+
+        EntityStore() {
+            type = new byte[16];
+            x = new int[16];
+            y = new int[16];
+            hp = new int[16];
+            maxHp = new int[16];
+            attack = new int[16];
+        }
+
+        int add(byte type, int x, int y, int hp, int maxHp, int attack) {
+            if (size == this.x.length) {
+                int capacity = size * 2;
+                this.type = Arrays.copyOf(this.type, capacity);
+                this.x = Arrays.copyOf(this.x, capacity);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.hp = Arrays.copyOf(this.hp, capacity);
+                this.maxHp = Arrays.copyOf(this.maxHp, capacity);
+                this.attack = Arrays.copyOf(this.attack, capacity);
+            }
+            int i = size++;
+            this.type[i] = type;
+            this.x[i] = x;
+            this.y[i] = y;
+            this.hp[i] = hp;
+            this.maxHp[i] = maxHp;
+            this.attack[i] = attack;
+            return i;
+        }
+
+        /**
+         * Removes slot i by moving the last entity into it.
+         * @return the slot the moved entity had, or -1 if i was the last one
+         */
+        int remove(int i) {
+            int last = --size;
+            if (i == last) return -1;
+            type[i] = type[last];
+            x[i] = x[last];
+            y[i] = y[last];
+            hp[i] = hp[last];
+            maxHp[i] = maxHp[last];
+            attack[i] = attack[last];
+            return last;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        EntityStore copy() {
+            EntityStore copy = new EntityStore();
+            int capacity = Math.max(16, size);
+            copy.size = size;
+            copy.type = Arrays.copyOf(type, capacity);
+            copy.x = Arrays.copyOf(x, capacity);
+            copy.y = Arrays.copyOf(y, capacity);
+            copy.hp = Arrays.copyOf(hp, capacity);
+            copy.maxHp = Arrays.copyOf(maxHp, capacity);
+            copy.attack = Arrays.copyOf(attack, capacity);
+            return copy;
+        }
+    }
+
+    /**
+     * What stands on which tile: an open-addressing hash map from the tile coordinates packed into a long
+     * to the entity's slot in its EntityStore, so lookups neither box nor allocate. A dense grid would need
+     * 16M slots on a 4096x4096 map and can't cover the endless world at all, this only grows with the
+     * number of entities.
+     */
+    static class TileIndex {
+        static final int NONE = -1;
+        private static final long FREE = Long.MIN_VALUE; // The key of (Integer.MIN_VALUE, 0), never a real tile
+
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        TileIndex() {
+            keys = new long[64];
+            values = new int[64];
+            Arrays.fill(keys, FREE);
+        }
+
+        /**
+         * @return the slot of the entity on the tile, or NONE
+         */
+        int get(int x, int y) {
+            long key = key(x, y);
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); keys[i] != FREE; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return NONE;
+        }
+
+        void put(int x, int y, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            long key = key(x, y);
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (keys[i] != FREE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == FREE) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        /**
+         * Removes the tile's entry, but only if it still points at this entity.
+         */
+        void remove(int x, int y, int value) {
+            long key = key(x, y);
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == FREE) return;
+                i = (i + 1) & mask;
+            }
+            if (values[i] != value) return;
+
+            // Shift the rest of the probe run back into the hole, so lookups never stop early
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+                int home = index(keys[j], mask);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = FREE;
+            size--;
+        }
+
+        void move(int fromX, int fromY, int toX, int toY, int value) {
+            remove(fromX, fromY, value);
+            put(toX, toY, value);
+        }
+
+        void clear() {
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, FREE);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == FREE) continue;
+                int i = index(oldKeys[j], mask);
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        static long key(int x, int y) {
+            return ((long) x << 32) | (y & 0xFFFFFFFFL);
+        }
+
+        private static int index(long key, int mask) {
+            // Neighbouring tiles must not land in neighbouring buckets, or linear probing clusters badly
+            long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            return (int) (h ^ (h >>> 33)) & mask;
+        }
+    }
+
+    /**
+     * Monster pathfinding. One breadth-first distance field from the player is shared by every monster,
+     * so a monster only has to step to a neighbour that's closer: the whole AI costs one pass over the
+     * field per turn, however many monsters there are. The field covers a window around the player, which
+     * keeps it cheap on huge maps and works in the endless world. {@link #findPath} is a plain A* search
+     * for the odd case the field can't answer.
+     */
+    static class Pathfinder {
+        static final int RADIUS = 64;
+        static final int SIZE = RADIUS * 2 + 1;
+        static final int UNREACHED = Integer.MAX_VALUE;
+        private static final int[] DX = { 1, -1, 0, 0 };
+        private static final int[] DY = { 0, 0, 1, -1 };
+
+        // Distances are stored minus base, so "everything got one step further away" is base++
+        private final int[] field = new int[SIZE * SIZE];
+        private final int[] queue = new int[SIZE * SIZE];
+        private int base;
+        private int originX, originY; // Map coordinates of field[0]
+        private int targetX, targetY;
+        private TileMap map;
+        private boolean valid;
+
+        /**
+         * Call when tiles changed, the next update rebuilds the field from scratch.
+         */
+        void invalidate() {
+            valid = false;
+        }
+
+        /**
+         * Brings the field up to date for the player at (x, y). When the player took one step since the last
+         * call, no distance can have grown by more than one, so the old field plus one is an upper bound:
+         * bump base, put the player's tile at 0 and only spread the distances that actually shrink.
+         * Anything else (new map, changed tiles, the window moving on) rebuilds it.
+         * <p>
+         * The window snaps to a grid of half radius steps, keeping the player away from its edges. That makes
+         * the field depend only on the map and the player's position, never on how they got there, which a
+         * replay that starts from a checkpoint relies on.
+         */
+        void update(TileMap map, int x, int y) {
+            if (valid && map == this.map && x == targetX && y == targetY) return;
+
+            int step = RADIUS / 2;
+            int windowX = Math.floorDiv(x, step) * step - step, windowY = Math.floorDiv(y, step) * step - step;
+            boolean oneStep = valid && map == this.map && Math.abs(x - targetX) + Math.abs(y - targetY) == 1;
+            boolean sameWindow = windowX == originX && windowY == originY;
+            this.map = map;
+            targetX = x;
+            targetY = y;
+            if (oneStep && sameWindow && base < 1 << 30) {
+                base++;
+                field[index(x, y)] = -base;
+            } else {
+                originX = windowX;
+                originY = windowY;
+                base = 0;
+                Arrays.fill(field, UNREACHED);
+                field[index(x, y)] = 0;
+            }
+            spread(index(x, y));
+            valid = true;
+        }
+
+        // Breadth-first from the player's tile, only through tiles whose distance goes down
+        private void spread(int start) {
+            int head = 0, tail = 0;
+            queue[tail++] = start;
+            while (head < tail) {
+                int i = queue[head++];
+                int next = field[i] + base + 1;
+                int cx = i % SIZE, cy = i / SIZE;
+                for (int dir = 0; dir < 4; dir++) {
+                    int nx = cx + DX[dir], ny = cy + DY[dir];
+                    if (nx < 0 || ny < 0 || nx >= SIZE || ny >= SIZE) continue;
+                    int n = ny * SIZE + nx;
+                    if ((field[n] == UNREACHED || field[n] + base > next) && map.isFloor(originX + nx, originY + ny)) {
+                        field[n] = next - base;
+                        queue[tail++] = n;
+                    }
+                }
+            }
+        }
+
+        boolean contains(int x, int y) {
+            return x >= originX && y >= originY && x < originX + SIZE && y < originY + SIZE;
+        }
+
+        /**
+         * @return steps from (x, y) to the player, UNREACHED outside the window or without a path inside it
+         */
+        int distance(int x, int y) {
+            if (!contains(x, y)) return UNREACHED;
+            int d = field[index(x, y)];
+            return d == UNREACHED ? UNREACHED : d + base;
+        }
+
+        private int index(int x, int y) {
+            return (y - originY) * SIZE + (x - originX);
+        }
+
+        /**
+         * A* over the whole map with the Manhattan distance as heuristic, giving up after visiting maxNodes
+         * tiles.
+         * @return the tiles to walk through, without the start and ending with the goal, or null if no path
+         *         was found
+         */
+        static List<Point> findPath(TileMap map, int startX, int startY, int goalX, int goalY, int maxNodes) {
+            TileIndex nodes = new TileIndex(); // Tile -> node number
+            int[] xs = new int[64], ys = new int[64], cost = new int[64], parent = new int[64];
+            long[] open = new long[64]; // Binary heap of (f << 32) | node
+            int openSize = 0;
+
+            xs[0] = startX;
+            ys[0] = startY;
+            parent[0] = -1;
+            nodes.put(startX, startY, 0);
+            open[openSize++] = (long) (Math.abs(goalX - startX) + Math.abs(goalY - startY)) << 32;
+            int count = 1;
+
+            while (openSize > 0) {
+                long entry = open[0];
+                open[0] = open[--openSize];
+                siftDown(open, openSize);
+                int node = (int) entry;
+                if ((int) (entry >>> 32) - cost[node] != Math.abs(goalX - xs[node]) + Math.abs(goalY - ys[node])) {
+                    continue; // Superseded by a cheaper route to the same tile
+                }
+                if (xs[node] == goalX && ys[node] == goalY) {
+                    List<Point> path = new ArrayList<>();
+                    for (int n = node; parent[n] >= 0; n = parent[n]) {
+                        path.add(0, new Point(xs[n], ys[n]));
+                    }
+                    return path;
+                }
+                if (count >= maxNodes) return null;
+
+                for (int dir = 0; dir < 4; dir++) {
+                    int nx = xs[node] + DX[dir], ny = ys[node] + DY[dir];
+                    if (!map.isFloor(nx, ny) && (nx != goalX || ny != goalY)) continue;
+                    int g = cost[node] + 1;
+                    int known = nodes.get(nx, ny);
+                    int n;
+                    if (known == TileIndex.NONE) {
+                        if (count == xs.length) {
+                            xs = Arrays.copyOf(xs, count * 2);
+                            ys = Arrays.copyOf(ys, count * 2);
+                            cost = Arrays.copyOf(cost, count * 2);
+                            parent = Arrays.copyOf(parent, count * 2);
+                        }
+                        n = count++;
+                        nodes.put(nx, ny, n);
+                        xs[n] = nx;
+                        ys[n] = ny;
+                    } else if (g < cost[known]) {
+                        n = known;
+                    } else {
+                        continue;
+                    }
+                    cost[n] = g;
+                    parent[n] = node;
+                    if (openSize == open.length) {
+                        open = Arrays.copyOf(open, openSize * 2);
+                    }
+                    open[openSize] = (long) (g + Math.abs(goalX - nx) + Math.abs(goalY - ny)) << 32 | n;
+                    siftUp(open, openSize++);
+                }
+            }
+            return null;
+        }
+
+        private static void siftUp(long[] heap, int i) {
+            long entry = heap[i];
+            while (i > 0 && heap[(i - 1) >>> 1] > entry) {
+                heap[i] = heap[(i - 1) >>> 1];
+                i = (i - 1) >>> 1;
+            }
+            heap[i] = entry;
+        }
+
+        private static void siftDown(long[] heap, int size) {
+            if (size == 0) return;
+            long entry = heap[0];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (heap[child] >= entry) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = entry;
+        }
+    }
+
+    /**
+     * What the player can see, by recursive shadowcasting: each octant is scanned row by row outwards and
+     * every wall narrows the range of slopes that rows further out can still be seen through. Results are
+     * kept for the square of tiles within RADIUS of the player, as a brightness per tile.
+     */
+    static class FieldOfView {
+        static final int RADIUS = 8;
+        static final int SIZE = RADIUS * 2 + 1;
+        // Octant transforms: (row, column) offsets to map offsets
+        private static final int[][] OCTANTS = {
+            { 1, 0, 0, -1, -1, 0, 0, 1 },
+            { 0, 1, -1, 0, 0, -1, 1, 0 },
+            { 0, 1, 1, 0, 0, -1, -1, 0 },
+            { 1, 0, 0, 1, -1, 0, 0, -1 }
+        };
+
+        private final byte[] light = new byte[SIZE * SIZE]; // 0 for tiles out of sight
+        private int originX, originY;
+        private TileMap map;
+
+        /**
+         * Recomputes what's visible from (x, y) and marks it explored on the map.
+         */
+        void compute(TileMap map, int x, int y) {
+            this.map = map;
+            originX = x;
+            originY = y;
+            Arrays.fill(light, (byte) 0);
+            reveal(0, 0);
+            for (int octant = 0; octant < 8; octant++) {
+                castLight(1, 1.0, 0.0, OCTANTS[0][octant], OCTANTS[1][octant], OCTANTS[2][octant], OCTANTS[3][octant]);
+            }
+        }
+
+        private void castLight(int row, double start, double end, int xx, int xy, int yx, int yy) {
+            if (start < end) return;
+            double newStart = 0;
+            for (int j = row; j <= RADIUS; j++) {
+                boolean blocked = false;
+                for (int dx = -j, dy = -j; dx <= 0; dx++) {
+                    double leftSlope = (dx - 0.5) / (dy + 0.5);
+                    double rightSlope = (dx + 0.5) / (dy - 0.5);
+                    if (start < rightSlope) continue;
+                    if (end > leftSlope) break;
+
+                    int mapDx = dx * xx + dy * xy, mapDy = dx * yx + dy * yy;
+                    if (dx * dx + dy * dy <= RADIUS * RADIUS) {
+                        reveal(mapDx, mapDy);
+                    }
+                    boolean wall = !map.isFloor(originX + mapDx, originY + mapDy);
+                    if (blocked) {
+                        if (wall) {
+                            newStart = rightSlope;
+                        } else {
+                            blocked = false;
+                            start = newStart;
+                        }
+                    } else if (wall && j < RADIUS) {
+                        blocked = true;
+                        castLight(j + 1, start, leftSlope, xx, xy, yx, yy);
+                        newStart = rightSlope;
+                    }
+                }
+                if (blocked) break;
+            }
+        }
+
+        // Brightest at the player, fading out towards the edge of the radius
+        private void reveal(int dx, int dy) {
+            int falloff = 255 - 200 * (dx * dx + dy * dy) / (RADIUS * RADIUS);
+            light[(dy + RADIUS) * SIZE + dx + RADIUS] = (byte) Math.max(1, falloff);
+            map.setExplored(originX + dx, originY + dy);
+        }
+
+        boolean isVisible(int x, int y) {
+            return light(x, y) > 0;
+        }
+
+        /**
+         * @return 0 (out of sight) to 255 (right next to the player)
+         */
+        int light(int x, int y) {
+            int dx = x - originX, dy = y - originY;
+            if (dx < -RADIUS || dy < -RADIUS || dx > RADIUS || dy > RADIUS) return 0;
+            return light[(dy + RADIUS) * SIZE + dx + RADIUS] & 0xFF;
+        }
+    }
+
+    /**
+     * The endless map: CHUNK_SIZE square chunks, of which only the ones around the player are in memory.
+     * Chunks are generated (or read back from the chunk file) on background threads and handed to the game
+     * thread in {@link #update}, so the game never waits for one. Until a chunk has arrived its tiles read as
+     * WALL. Coordinates can be negative, the world has no edges.
+     */
+    static class ChunkedTileMap extends TileMap implements Closeable {
+        static final int CHUNK_BITS = 6;
+        static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        static final int LOAD_RADIUS = 2;  // Chunks around the player's one that get loaded ahead of time
+        static final int EVICT_RADIUS = 4; // Chunks further away than this go to the chunk file
+
+        // Loaded chunks sit in a 16x16 ring indexed by chunk coordinates mod 16, so a tile lookup is two array
+        // reads and no hashing or boxing. Two chunks only share a slot when they're 16 chunks apart, and
+        // everything further than EVICT_RADIUS has been written out long before that.
+        private static final int WINDOW_BITS = 4;
+        private static final int WINDOW_MASK = (1 << WINDOW_BITS) - 1;
+
+        /** Fills in a new chunk. Runs on a loader thread, so it must only touch the chunk. */
+        interface Generator {
+            void generate(Chunk chunk);
+        }
+
+        /** Called on the game thread, to move a chunk's entities in and out of the game. */
+        interface Listener {
+            void chunkLoaded(Chunk chunk);
+            void chunkEvicting(Chunk chunk);
+        }
+
+        static class Chunk {
+            final int cx, cy;
+            final TileMap tiles = new TileMap(CHUNK_SIZE, CHUNK_SIZE);
+            final EntityStore entities = new EntityStore(); // Monsters and items waiting here while it isn't part of the game
+
+            Chunk(int cx, int cy) {
+                this.cx = cx;
+                this.cy = cy;
+            }
+
+            int originX() {
+                return cx << CHUNK_BITS;
+            }
+
+            int originY() {
+                return cy << CHUNK_BITS;
+            }
+
+            boolean contains(int x, int y) {
+                return x >> CHUNK_BITS == cx && y >> CHUNK_BITS == cy;
+            }
+        }
+
+        private final Chunk[] window = new Chunk[1 << (WINDOW_BITS * 2)];
+        private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+        private final Queue<Chunk> arrived = new ConcurrentLinkedQueue<>();
+        private final ExecutorService loader;
+        private final ChunkStore store;
+        private final Generator generator;
+        private final Listener listener;
+
+        ChunkedTileMap(Generator generator, Listener listener) {
+            super(0, 0);
+            this.generator = generator;
+            this.listener = listener;
+            try {
+                this.store = new ChunkStore();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            this.loader = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "DungeonCrawler-chunks");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+
+        /**
+         * Mixes a seed with a chunk position, for per-chunk randomness that's the same every time.
+         */
+        static long hash(long seed, int cx, int cy, int salt) {
+            long h = seed ^ cx * 0x9E3779B97F4A7C15L ^ cy * 0xC2B2AE3D27D4EB4FL ^ salt * 0x165667B19E3779F9L;
+            h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            return h ^ (h >>> 33);
+        }
+
+        /**
+         * How dangerous the world is at a tile, 1 around the start and one more for every chunk further out.
+         */
+        static int depth(int x, int y) {
+            return 1 + Math.max(Math.abs(x >> CHUNK_BITS), Math.abs(y >> CHUNK_BITS));
+        }
+
+        @Override
+        boolean inBounds(int x, int y) {
+            return true;
+        }
+
+        @Override
+        byte get(int x, int y) {
+            Chunk chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS);
+            return chunk == null ? WALL : chunk.tiles.get(x & (CHUNK_SIZE - 1), y & (CHUNK_SIZE - 1));
+        }
+
+        @Override
+        void set(int x, int y, byte tile) {
+            Chunk chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS);
+            if (chunk != null) {
+                chunk.tiles.set(x & (CHUNK_SIZE - 1), y & (CHUNK_SIZE - 1), tile);
+            }
+        }
+
+        @Override
+        boolean isExplored(int x, int y) {
+            Chunk chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS);
+            return chunk != null && chunk.tiles.isExplored(x & (CHUNK_SIZE - 1), y & (CHUNK_SIZE - 1));
+        }
+
+        @Override
+        void setExplored(int x, int y) {
+            Chunk chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS);
+            if (chunk != null) {
+                chunk.tiles.setExplored(x & (CHUNK_SIZE - 1), y & (CHUNK_SIZE - 1));
+            }
+        }
+
+        Chunk chunkAt(int cx, int cy) {
+            Chunk chunk = window[slot(cx, cy)];
+            return chunk != null && chunk.cx == cx && chunk.cy == cy ? chunk : null;
+        }
+
+        /**
+         * Loads the chunks around a tile right away, on this thread. Only meant for the start of a game,
+         * when there is nothing to show yet anyway.
+         */
+        void loadNow(int x, int y, int radius) {
+            int pcx = x >> CHUNK_BITS, pcy = y >> CHUNK_BITS;
+            for (int cy = pcy - radius; cy <= pcy + radius; cy++) {
+                for (int cx = pcx - radius; cx <= pcx + radius; cx++) {
+                    if (chunkAt(cx, cy) == null) {
+                        install(load(cx, cy));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called from the game thread every turn and tick: takes in the chunks the loaders finished, writes
+         * out the ones the player left behind and queues the ones ahead. Never blocks on a loader.
+         */
+        void update(int playerX, int playerY) {
+            int pcx = playerX >> CHUNK_BITS, pcy = playerY >> CHUNK_BITS;
+
+            Chunk chunk;
+            while ((chunk = arrived.poll()) != null) {
+                pending.remove(key(chunk.cx, chunk.cy));
+                install(chunk);
+            }
+
+            for (Chunk loaded : window) {
+                if (loaded != null && distance(loaded, pcx, pcy) > EVICT_RADIUS) {
+                    evict(loaded);
+                }
+            }
+
+            for (int cy = pcy - LOAD_RADIUS; cy <= pcy + LOAD_RADIUS; cy++) {
+                for (int cx = pcx - LOAD_RADIUS; cx <= pcx + LOAD_RADIUS; cx++) {
+                    if (chunkAt(cx, cy) == null && pending.add(key(cx, cy))) {
+                        int chunkX = cx, chunkY = cy;
+                        loader.execute(() -> arrived.add(load(chunkX, chunkY)));
+                    }
+                }
+            }
+        }
+
+        private Chunk load(int cx, int cy) {
+            Chunk chunk = new Chunk(cx, cy);
+            try {
+                if (store.load(chunk)) return chunk;
+            } catch (IOException e) {
+                e.printStackTrace(); // Lost the saved copy, a regenerated chunk is better than a hole
+            }
+            generator.generate(chunk);
+            return chunk;
+        }
+
+        private void install(Chunk chunk) {
+            Chunk previous = window[slot(chunk.cx, chunk.cy)];
+            if (previous != null) {
+                evict(previous);
+            }
+            window[slot(chunk.cx, chunk.cy)] = chunk;
+            listener.chunkLoaded(chunk);
+        }
+
+        private void evict(Chunk chunk) {
+            listener.chunkEvicting(chunk);
+            try {
+                store.save(chunk);
+            } catch (IOException e) {
+                e.printStackTrace(); // It'll be generated again from its seed, minus whatever changed
+            }
+            window[slot(chunk.cx, chunk.cy)] = null;
+        }
+
+        private static int slot(int cx, int cy) {
+            return ((cy & WINDOW_MASK) << WINDOW_BITS) | (cx & WINDOW_MASK);
+        }
+
+        private static long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        }
+
+        private static int distance(Chunk chunk, int cx, int cy) {
+            return Math.max(Math.abs(chunk.cx - cx), Math.abs(chunk.cy - cy));
+        }
+
+        @Override
+        public void close() throws IOException {
+            loader.shutdownNow();
+            store.close();
+        }
+
+        /**
+         * Evicted chunks, one fixed-size slot each in a memory-mapped temp file. Only the slot index stays on
+         * the heap (a few bytes per chunk ever visited), the chunks themselves live in the OS page cache.
+         * The file is mapped a segment at a time, so saving a chunk is a memory copy, not a syscall. Unlike
+         * saves and journals, nobody else ever opens or replaces this file, so the mapping can't get in the way.
+         * <p>
+         * A slot has room for MAX_ENTITIES monsters and items. A chunk with more than that (monsters crowding
+         * after the player) keeps the rest in an overflow record on the heap until it is loaded again.
+         */
+        static class ChunkStore implements Closeable {
+            static final int SLOT_SIZE = 8192;
+            static final int ENTITY_BYTES = 6 * 4; // type, x, y, hp, maxHp, attack
+            static final int EXPLORED_BYTES = CHUNK_SIZE * CHUNK_SIZE / 8;
+            static final int MAX_ENTITIES = (SLOT_SIZE - CHUNK_SIZE * CHUNK_SIZE - EXPLORED_BYTES - 4) / ENTITY_BYTES;
+            private static final int SEGMENT_SLOTS = 512; // 4 MB per mapping
+
+            private final Path file;
+            private final FileChannel channel;
+            private final Map<Long, Integer> slots = new HashMap<>();
+            private final Map<Long, int[]> overflow = new HashMap<>(); // Entities past MAX_ENTITIES, 6 ints each
+            private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+            ChunkStore() throws IOException {
+                file = Files.createTempFile("dungeon-chunks", ".bin");
+                file.toFile().deleteOnExit();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+
+            synchronized void save(Chunk chunk) throws IOException {
+                Integer slot = slots.get(key(chunk.cx, chunk.cy));
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(key(chunk.cx, chunk.cy), slot);
+                }
+                ByteBuffer buffer = slotBuffer(slot);
+                buffer.put(chunk.tiles.tiles);
+                for (long bits : chunk.tiles.explored) {
+                    buffer.putLong(bits);
+                }
+                EntityStore entities = chunk.entities;
+                int count = Math.min(entities.size, MAX_ENTITIES);
+                buffer.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    buffer.putInt(entities.type[i]).putInt(entities.x[i]).putInt(entities.y[i])
+                          .putInt(entities.hp[i]).putInt(entities.maxHp[i]).putInt(entities.attack[i]);
+                }
+                if (entities.size > count) {
+                    int[] rest = new int[(entities.size - count) * 6];
+                    for (int i = count, j = 0; i < entities.size; i++) {
+                        rest[j++] = entities.type[i];
+                        rest[j++] = entities.x[i];
+                        rest[j++] = entities.y[i];
+                        rest[j++] = entities.hp[i];
+                        rest[j++] = entities.maxHp[i];
+                        rest[j++] = entities.attack[i];
+                    }
+                    overflow.put(key(chunk.cx, chunk.cy), rest);
+                } else {
+                    overflow.remove(key(chunk.cx, chunk.cy));
+                }
+            }
+
+            /**
+             * @return false if the chunk was never saved
+             */
+            synchronized boolean load(Chunk chunk) throws IOException {
+                Integer slot = slots.get(key(chunk.cx, chunk.cy));
+                if (slot == null) return false;
+
+                ByteBuffer buffer = slotBuffer(slot);
+                buffer.get(chunk.tiles.tiles);
+                for (int i = 0; i < chunk.tiles.explored.length; i++) {
+                    chunk.tiles.explored[i] = buffer.getLong();
+                }
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    chunk.entities.add((byte) buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                                       buffer.getInt(), buffer.getInt(), buffer.getInt());
+                }
+                int[] rest = overflow.remove(key(chunk.cx, chunk.cy));
+                for (int j = 0; rest != null && j < rest.length; j += 6) {
+                    chunk.entities.add((byte) rest[j], rest[j + 1], rest[j + 2], rest[j + 3], rest[j + 4], rest[j + 5]);
+                }
+                return true;
+            }
+
+            private ByteBuffer slotBuffer(int slot) throws IOException {
+                int segment = slot / SEGMENT_SLOTS;
+                while (segments.size() <= segment) {
+                    long position = (long) segments.size() * SEGMENT_SLOTS * SLOT_SIZE;
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) SEGMENT_SLOTS * SLOT_SIZE));
+                }
+                return segments.get(segment).slice((slot % SEGMENT_SLOTS) * SLOT_SIZE, SLOT_SIZE);
+            }
+
+            @Override
+            public void close() throws IOException {
+                segments.clear();
+                overflow.clear();
+                channel.close();
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Still mapped on some platforms, deleteOnExit gets it later
+                }
+            }
+        }
+    }
+
+    /**
+     * The rules of the game without any window: the levels, the player, the monsters and what a turn does to
+     * them. Everything random starts from one seed, so a seed and a sequence of moves always play out the
+     * same, whether in the window or in a headless {@link Simulation}. A game belongs to one thread (the
+     * event thread, or the render thread with active rendering); only levels prepared ahead use another.
+     */
+    static class Game {
+        /**
+         * Hooks for whatever shows the game. All are called on the game's thread, except levelPrepared.
+         */
+        interface Listener {
+            default void levelEntered() {}
+
+            // On the level loader thread, before the level is handed to the game
+            default void levelPrepared(Level level) {}
+
+            default void chunkLoaded(ChunkedTileMap.Chunk chunk) {}
+        }
+
+        // Player commands
+        static final byte MOVE_UP = 0, MOVE_DOWN = 1, MOVE_LEFT = 2, MOVE_RIGHT = 3, DRINK = 4;
+
+        // How far away monsters in the endless world notice the player, about a screen
+        private static final int NOTICE_X = 35, NOTICE_Y = 22;
+
+        final int mapWidth;
+        final int mapHeight;
+        final boolean endless;
+        final int stressMonsters;
+        private long seedState; // Where the next game's seed comes from, see nextSeed
+        private final boolean prepareAhead;
+        private final boolean twoWay;
+        private long gameSeed;
+        private Listener listener = new Listener() {};
+
+        Player player;
+        Level level;
+        // The current level's stores and indexes, kept here as well since nearly everything uses them
+        EntityStore monsters, items;
+        TileIndex monsterAt, itemAt;
+        TileMap map;
+        ChunkedTileMap chunks; // Same as map in endless mode, null otherwise
+        Point stairs; // null in endless mode
+        Point upStairs; // null on the first level, in endless mode and in the bots' one-way games
+        int dungeonLevel = 1;
+        String message = "";
+        int turns;
+        private final Pathfinder pathfinder = new Pathfinder();
+        private Future<Level> preparedLevel; // The level below, being built in the background
+        private ExecutorService levelLoader;
+        private ExecutorService levelPacker;
+        private final VisitedLevels visited = new VisitedLevels();
+
+        // Monster plans for the current turn, by slot
+        private static final byte PLAN_WAIT = 0, PLAN_MOVE = 1, PLAN_ATTACK = 2;
+        private static final int PLAN_BATCH = 4096; // Monsters per fork-join task
+        private byte[] plans = new byte[0];
+        private int[] plannedX = new int[0], plannedY = new int[0];
+
+        /**
+         * @param prepareAhead build each next level on a background thread while the current one is played
+         * @param twoWay levels have stairs back up, and the ones left are kept to go back to. The bots never
+         *               turn back, so their games go without.
+         */
+        Game(Settings settings, long seed, boolean prepareAhead, boolean twoWay) {
+            this.mapWidth = settings.mapWidth;
+            this.mapHeight = settings.mapHeight;
+            this.endless = settings.endless;
+            this.stressMonsters = settings.stressMonsters;
+            this.seedState = seed;
+            this.prepareAhead = prepareAhead && !endless;
+            this.twoWay = twoWay && !endless;
+        }
+
+        void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        void newGame() {
+            newGame(nextSeed());
+        }
+
+        // SplitMix64: one seed per game, and every level and chunk seed derives from that. The whole state
+        // is one long, which keeps saving it simple.
+        long nextSeed() {
+            long z = seedState += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        void newGame(long seed) {
+            if (preparedLevel != null) {
+                preparedLevel.cancel(true);
+                preparedLevel = null;
+            }
+            visited.clear();
+            gameSeed = seed;
+            turns = 0;
+            dungeonLevel = 1;
+            message = endless
+                ? "Welcome, brave adventurer! The halls go on forever, and grow deadlier the further you roam."
+                : "Welcome, brave adventurer! Find the glowing portal to descend deeper.";
+            if (endless) {
+                generateWorld();
+            } else {
+                enterLevel(createLevel(dungeonLevel));
+            }
+        }
+
+        /**
+         * Plays one of the player commands, which are all a {@link Journal} needs to record.
+         */
+        void play(byte command) {
+            switch (command) {
+                case MOVE_UP:    move(0, -1); break;
+                case MOVE_DOWN:  move(0, 1);  break;
+                case MOVE_LEFT:  move(-1, 0); break;
+                case MOVE_RIGHT: move(1, 0);  break;
+                case DRINK:      drinkPotion(); break;
+                default: throw new IllegalArgumentException("Unknown command " + command);
+            }
+        }
+
+        // A player's turn: step or attack, then the monsters act
+        void move(int dx, int dy) {
+            if (player.hp <= 0) return;
+            turns++;
+            movePlayer(dx, dy);
+            if (player.hp > 0) {
+                updateMonsters();
+            }
+            updateChunks();
+        }
+
+        // Drinking is free, the monsters don't get a turn
+        void drinkPotion() {
+            if (player.hp > 0) player.usePotion();
+        }
+
+        boolean isOver() {
+            return player.hp <= 0;
+        }
+
+        /**
+         * Carries on from a saved game, see {@link SaveFile}.
+         */
+        void restore(Level saved, Player savedPlayer, int depth, int savedTurns, long savedGameSeed, long savedSeedState,
+                     Map<Integer, Future<ByteBuffer>> visitedLevels) {
+            if (preparedLevel != null) {
+                preparedLevel.cancel(true);
+                preparedLevel = null;
+            }
+            visited.restore(visitedLevels);
+            gameSeed = savedGameSeed;
+            seedState = savedSeedState;
+            turns = savedTurns;
+            dungeonLevel = depth;
+            message = "You pick up where you left off... (Level " + dungeonLevel + ")";
+            setLevel(saved);
+            player = savedPlayer;
+            listener.levelEntered();
+            prepareNextLevel();
+        }
+
+        /**
+         * Changes a single tile.
+         * @return false if it already was that tile
+         */
+        boolean setTile(int x, int y, byte tile) {
+            if (map.get(x, y) == tile) return false;
+            map.set(x, y, tile);
+            pathfinder.invalidate();
+            return true;
+        }
+
+        private void nextLevel() {
+            if (twoWay) visited.put(level);
+            dungeonLevel++;
+            message = "You descend deeper into the mystical depths... (Level " + dungeonLevel + ")";
+            Level below = visited.take(dungeonLevel);
+            if (below != null) {
+                returnToLevel(below, below.upStairs);
+            } else {
+                enterLevel(takePreparedLevel());
+            }
+        }
+
+        private void previousLevel() {
+            visited.put(level);
+            dungeonLevel--;
+            message = "You climb back up the winding stairs... (Level " + dungeonLevel + ")";
+            Level above = visited.take(dungeonLevel);
+            if (above == null) {
+                above = createLevel(dungeonLevel); // Visited before a saved game was loaded
+            }
+            returnToLevel(above, above.stairs);
+        }
+
+        /**
+         * Goes back to a level as it was left, the player keeping everything and arriving on the stairs.
+         */
+        private void returnToLevel(Level visitedLevel, Point arrival) {
+            Player returning = player;
+            setLevel(visitedLevel);
+            player = returning;
+            player.x = arrival.x;
+            player.y = arrival.y;
+            listener.levelEntered();
+            prepareNextLevel();
+        }
+
+        /**
+         * Makes a level the current one, then starts on the one below it. With a level that was prepared
+         * ahead this is only a handful of assignments, so going downstairs costs no time at all.
+         */
+        private void enterLevel(Level next) {
+            setLevel(next);
+            listener.levelEntered();
+            prepareNextLevel();
+        }
+
+        private void setLevel(Level next) {
+            level = next;
+            map = next.map;
+            stairs = next.stairs;
+            upStairs = next.upStairs;
+            monsters = next.monsters;
+            items = next.items;
+            monsterAt = next.monsterAt;
+            itemAt = next.itemAt;
+            pathfinder.invalidate();
+            if (next.start != null) {
+                player = new Player(next.start.x, next.start.y);
+            }
+        }
+
+        private void prepareNextLevel() {
+            if (!prepareAhead || visited.contains(dungeonLevel + 1)) return;
+            int depth = dungeonLevel + 1;
+            Listener listener = this.listener;
+            preparedLevel = loader().submit(() -> {
+                Level next = createLevel(depth);
+                listener.levelPrepared(next);
+                return next;
+            });
+        }
+
+        private ExecutorService loader() {
+            if (levelLoader == null) {
+                levelLoader = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "DungeonCrawler-levels");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+            }
+            return levelLoader;
+        }
+
+        // Packs the levels left on a thread of its own, so going back never waits behind a level being built
+        private ExecutorService packer() {
+            if (levelPacker == null) {
+                levelPacker = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "DungeonCrawler-packer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return levelPacker;
+        }
+
+        // The level below, waiting for it if the player got to the stairs before it was done
+        private Level takePreparedLevel() {
+            Future<Level> pending = preparedLevel;
+            preparedLevel = null;
+            if (pending != null) {
+                try {
+                    Level next = pending.get();
+                    if (next.depth == dungeonLevel) return next;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+            return createLevel(dungeonLevel);
+        }
+
+        long levelSeed(int depth) {
+            return ChunkedTileMap.hash(gameSeed, depth, 0, 0);
+        }
+
+        /**
+         * Builds a whole level from the game seed and its depth. Nothing of the running game is touched, so
+         * this can run on the level loader.
+         */
+        private Level createLevel(int depth) {
+            Random rand = new Random(levelSeed(depth));
+            MapGenerator generator = new MapGenerator(new TileMap(mapWidth, mapHeight), rand);
+            Level next = new Level(depth, generator.generateMap());
+            next.start = generator.getRandomRoomCenter();
+            next.stairs = generator.getRandomRoomCenter();
+            while (next.stairs.equals(next.start)) {
+                next.stairs = generator.getRandomRoomCenter();
+            }
+            if (depth > 1 && twoWay) {
+                next.upStairs = new Point(next.start); // The way back up is where the player arrives
+            }
+            populateDungeon(next, generator.getRooms(), rand);
+            addStressMonsters(next, rand);
+            return next;
+        }
+
+        /**
+         * Endless mode: starts a fresh world with the chunks around the origin already there, and the player
+         * on the floor tile closest to the middle of the first chunk.
+         */
+        private void generateWorld() {
+            if (chunks != null) {
+                try {
+                    chunks.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long seed = gameSeed;
+            chunks = new ChunkedTileMap(chunk -> generateChunk(chunk, seed), new ChunkedTileMap.Listener() {
+                @Override
+                public void chunkLoaded(ChunkedTileMap.Chunk chunk) {
+                    adoptEntities(chunk);
+                }
+
+                @Override
+                public void chunkEvicting(ChunkedTileMap.Chunk chunk) {
+                    releaseEntities(chunk);
+                }
+            });
+            player = new Player(Integer.MIN_VALUE, Integer.MIN_VALUE); // Placed once there's a map around it
+            setLevel(new Level(1, chunks));
+            chunks.loadNow(0, 0, 1);
+
+            int middle = ChunkedTileMap.CHUNK_SIZE / 2;
+            Point start = new Point(middle, middle);
+            int best = Integer.MAX_VALUE;
+            for (int y = 0; y < ChunkedTileMap.CHUNK_SIZE; y++) {
+                for (int x = 0; x < ChunkedTileMap.CHUNK_SIZE; x++) {
+                    int distance = Math.abs(x - middle) + Math.abs(y - middle);
+                    if (distance < best && map.isFloor(x, y)) {
+                        best = distance;
+                        start.setLocation(x, y);
+                    }
+                }
+            }
+            player.x = start.x;
+            player.y = start.y;
+            if (monsterAt.get(start.x, start.y) != TileIndex.NONE) level.removeMonster(monsterAt.get(start.x, start.y));
+            if (itemAt.get(start.x, start.y) != TileIndex.NONE) level.removeItem(itemAt.get(start.x, start.y));
+            chunks.update(player.x, player.y);
+            listener.levelEntered();
+        }
+
+        /**
+         * Lays out one chunk of the endless world with the usual room generator, seeded from the world seed
+         * and the chunk position, so it comes out the same whoever generates it. Each side of a chunk has one
+         * opening, placed by a hash both neighbours agree on, with a corridor to the nearest room, so the
+         * whole world stays connected without chunks knowing about each other.
+         * Runs on a loader thread: only the chunk and its own Random are touched here.
+         */
+        private void generateChunk(ChunkedTileMap.Chunk chunk, long seed) {
+            final int size = ChunkedTileMap.CHUNK_SIZE;
+            int cx = chunk.cx, cy = chunk.cy;
+            Random rand = new Random(ChunkedTileMap.hash(seed, cx, cy, 0));
+            MapGenerator generator = new MapGenerator(chunk.tiles, rand);
+            generator.generateMap();
+
+            Point east = new Point(size - 1, doorOffset(seed, cx, cy, 1));
+            Point west = new Point(0, doorOffset(seed, cx - 1, cy, 1));
+            Point south = new Point(doorOffset(seed, cx, cy, 2), size - 1);
+            Point north = new Point(doorOffset(seed, cx, cy - 1, 2), 0);
+            // Horizontal first from the east and west openings, vertical last into the north and south ones,
+            // so no corridor runs along the chunk border
+            generator.carveCorridor(east, generator.getNearestRoomCenter(east));
+            generator.carveCorridor(west, generator.getNearestRoomCenter(west));
+            generator.carveCorridor(generator.getNearestRoomCenter(south), south);
+            generator.carveCorridor(generator.getNearestRoomCenter(north), north);
+            chunk.tiles.set(south.x, south.y, TileMap.FLOOR);
+            chunk.tiles.set(north.x, north.y, TileMap.FLOOR);
+
+            int depth = 1 + Math.max(Math.abs(cx), Math.abs(cy));
+            int ox = chunk.originX(), oy = chunk.originY();
+            for (Rectangle room : generator.getRooms()) {
+                if (rand.nextInt(100) < 40 + depth * 8) {
+                    int x = ox + room.x + 1 + rand.nextInt(Math.max(1, room.width - 2));
+                    int y = oy + room.y + 1 + rand.nextInt(Math.max(1, room.height - 2));
+                    chunk.entities.add(EntityStore.MONSTER, x, y, 8 + depth * 4, 8 + depth * 4, 3 + depth);
+                }
+                if (rand.nextInt(100) < 15) {
+                    int x = ox + room.x + 1 + rand.nextInt(Math.max(1, room.width - 2));
+                    int y = oy + room.y + 1 + rand.nextInt(Math.max(1, room.height - 2));
+                    chunk.entities.add(EntityStore.HEALTH_ELIXIR, x, y, 0, 0, 0);
+                }
+                if (rand.nextInt(100) < 5) {
+                    int x = ox + room.x + 1 + rand.nextInt(Math.max(1, room.width - 2));
+                    int y = oy + room.y + 1 + rand.nextInt(Math.max(1, room.height - 2));
+                    chunk.entities.add(EntityStore.POWER_CRYSTAL, x, y, 0, 0, 0);
+                }
+            }
+        }
+
+        // Where the opening on the east (side 1) or south (side 2) border of a chunk is
+        private int doorOffset(long seed, int cx, int cy, int side) {
+            return 2 + (int) Math.floorMod(ChunkedTileMap.hash(seed, cx, cy, side), ChunkedTileMap.CHUNK_SIZE - 4L);
+        }
+
+        // A chunk came in: its entities join the game
+        private void adoptEntities(ChunkedTileMap.Chunk chunk) {
+            EntityStore e = chunk.entities;
+            for (int i = 0; i < e.size; i++) {
+                if (!isPositionFree(e.x[i], e.y[i])) continue;
+                if (e.type[i] == EntityStore.MONSTER) {
+                    int monster = level.addMonster(e.x[i], e.y[i], e.maxHp[i], e.attack[i]);
+                    monsters.hp[monster] = e.hp[i];
+                } else {
+                    level.addItem(e.type[i], e.x[i], e.y[i]);
+                }
+            }
+            e.clear();
+            pathfinder.invalidate(); // Its tiles were walls until now
+            listener.chunkLoaded(chunk);
+        }
+
+        // A chunk is about to be written out: whatever stands in it goes along
+        private void releaseEntities(ChunkedTileMap.Chunk chunk) {
+            // Backwards, so the entity a removal swaps into the hole has already been looked at
+            for (int i = monsters.size - 1; i >= 0; i--) {
+                if (chunk.contains(monsters.x[i], monsters.y[i])) {
+                    chunk.entities.add(EntityStore.MONSTER, monsters.x[i], monsters.y[i], monsters.hp[i], monsters.maxHp[i], monsters.attack[i]);
+                    level.removeMonster(i);
+                }
+            }
+            for (int i = items.size - 1; i >= 0; i--) {
+                if (chunk.contains(items.x[i], items.y[i])) {
+                    chunk.entities.add(items.type[i], items.x[i], items.y[i], 0, 0, 0);
+                    level.removeItem(i);
+                }
+            }
+        }
+
+        // The endless world loads around the player; the depth is how far out they are
+        void updateChunks() {
+            if (chunks == null) return;
+            chunks.update(player.x, player.y);
+            dungeonLevel = ChunkedTileMap.depth(player.x, player.y);
+        }
+
+        private void populateDungeon(Level level, List<Rectangle> rooms, Random rand) {
+            int depth = level.depth;
+            for (Rectangle room : rooms) {
+                if (rand.nextInt(100) < 40 + depth * 8) {
+                    Point pos = getRandomPointInRoom(room, rand);
+                    if (level.isFree(pos.x, pos.y)) {
+                        level.addMonster(pos.x, pos.y, 8 + depth * 4, 3 + depth);
+                    }
+                }
+                if (rand.nextInt(100) < 15) {
+                    Point pos = getRandomPointInRoom(room, rand);
+                    if (level.isFree(pos.x, pos.y)) {
+                        level.addItem(EntityStore.HEALTH_ELIXIR, pos.x, pos.y);
+                    }
+                }
+                if (rand.nextInt(100) < 5) {
+                    Point pos = getRandomPointInRoom(room, rand);
+                    if (level.isFree(pos.x, pos.y)) {
+                        level.addItem(EntityStore.POWER_CRYSTAL, pos.x, pos.y);
+                    }
+                }
+            }
+        }
+
+        // Scatters the --monsters extras over free floor tiles anywhere on the map
+        private void addStressMonsters(Level level, Random rand) {
+            int depth = level.depth;
+            for (int added = 0, tries = 0; added < stressMonsters && tries < stressMonsters * 20; tries++) {
+                int x = rand.nextInt(mapWidth), y = rand.nextInt(mapHeight);
+                if (level.map.isFloor(x, y) && level.isFree(x, y)) {
+                    level.addMonster(x, y, 8 + depth * 4, 3 + depth);
+                    added++;
+                }
+            }
+        }
+
+        private Point getRandomPointInRoom(Rectangle room, Random rand) {
+            int x = rand.nextInt(Math.max(1, room.width - 2)) + room.x + 1;
+            int y = rand.nextInt(Math.max(1, room.height - 2)) + room.y + 1;
+            return new Point(x, y);
+        }
+
+        private boolean isPositionFree(int x, int y) {
+            return (player.x != x || player.y != y) && level.isFree(x, y);
+        }
+
+        private void movePlayer(int dx, int dy) {
+            int nextX = player.x + dx;
+            int nextY = player.y + dy;
+
+            if (!map.inBounds(nextX, nextY)) {
+                return;
+            }
+
+            if (map.get(nextX, nextY) == TileMap.WALL) {
+                message = "The ancient stone blocks your path...";
+                return;
+            }
+
+            int monster = monsterAt.get(nextX, nextY);
+            if (monster != TileIndex.NONE) {
+                player.attack(monster);
+                if (monsters.hp[monster] <= 0) {
+                    message = "⚔ Victory! The creature falls before your might!";
+                    level.removeMonster(monster);
+                    player.gainExperience(10);
+                } else {
+                    player.hp -= monsters.attack[monster];
+                    message = "⚔ Battle rages! You strike but the enemy retaliates!";
+                    if (player.hp <= 0) {
+                        message = "💀 Your adventure ends here... Press R to begin anew.";
+                    }
+                }
+                return;
+            }
+            
+            player.x = nextX;
+            player.y = nextY;
+            message = "You tread carefully through the shadowy halls...";
+
+            int item = itemAt.get(player.x, player.y);
+            if (item != TileIndex.NONE) {
+                player.pickupItem(items.type[item]);
+                if (items.type[item] == EntityStore.HEALTH_ELIXIR) {
+                    message = "✨ You discovered a healing elixir! (+20 HP)";
+                } else if (items.type[item] == EntityStore.POWER_CRYSTAL) {
+                    message = "💎 A power crystal enhances your abilities! (+5 Attack)";
+                }
+                level.removeItem(item);
+            }
+
+            if (stairs != null && player.x == stairs.x && player.y == stairs.y) {
+                nextLevel();
+            } else if (upStairs != null && player.x == upStairs.x && player.y == upStairs.y) {
+                previousLevel();
+            }
+        }
+
+        /**
+         * Monster turns in two phases. Planning only reads the game state, so it's split across the
+         * fork-join pool once there are enough monsters to be worth it. Applying the plans is sequential and
+         * in slot order: when two monsters want the same tile the lower slot gets it and the other waits,
+         * so the outcome never depends on how the threads happened to run.
+         */
+        private void updateMonsters() {
+            pathfinder.update(map, player.x, player.y);
+            int count = monsters.size;
+            if (plannedX.length < count) {
+                int capacity = Math.max(count, plannedX.length * 2);
+                plans = new byte[capacity];
+                plannedX = new int[capacity];
+                plannedY = new int[capacity];
+            }
+            if (count >= PLAN_BATCH * 2) {
+                ForkJoinPool.commonPool().invoke(new MonsterPlanner(0, count));
+            } else {
+                planMonsters(0, count);
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (plans[i] == PLAN_ATTACK) {
+                    player.hp -= monsters.attack[i];
+                    message = "💥 The creature strikes with deadly force!";
+                    if (player.hp <= 0) message = "💀 You have fallen in battle! Press R to try again.";
+                } else if (plans[i] == PLAN_MOVE && monsterAt.get(plannedX[i], plannedY[i]) == TileIndex.NONE) {
+                    level.moveMonster(i, plannedX[i], plannedY[i]);
+                }
+            }
+        }
+
+        class MonsterPlanner extends RecursiveAction {
+            private final int from, to;
+
+            MonsterPlanner(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= PLAN_BATCH) {
+                    planMonsters(from, to);
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new MonsterPlanner(from, middle), new MonsterPlanner(middle, to));
+                }
+            }
+        }
+
+        // Decides what each monster in the slot range wants to do. Runs on pool threads: reads anything,
+        // writes nothing but its own slots of the plan arrays.
+        private void planMonsters(int from, int to) {
+            for (int i = from; i < to; i++) {
+                plans[i] = PLAN_WAIT;
+                int x = monsters.x[i], y = monsters.y[i];
+                // The endless world is full of monsters, only the ones near enough to have noticed you give chase
+                if (endless && (Math.abs(x - player.x) > NOTICE_X || Math.abs(y - player.y) > NOTICE_Y)) {
+                    continue;
+                }
+
+                int dx = Integer.compare(player.x, x);
+                int dy = Integer.compare(player.y, y);
+                if (x + dx == player.x && y + dy == player.y) {
+                    plans[i] = PLAN_ATTACK;
+                    continue;
+                }
+
+                // Downhill on the shared distance field. Monsters don't share a tile, an occupied one counts as
+                // a wall (as of the start of the turn, applying the plans checks again).
+                int distance = pathfinder.distance(x, y);
+                if (distance != Pathfinder.UNREACHED) {
+                    for (int dir = 0; dir < 4; dir++) {
+                        int nx = x + Pathfinder.DX[dir], ny = y + Pathfinder.DY[dir];
+                        int d = pathfinder.distance(nx, ny);
+                        if (d < distance && monsterAt.get(nx, ny) == TileIndex.NONE) {
+                            distance = d;
+                            plan(i, nx, ny);
+                        }
+                    }
+                    continue;
+                }
+
+                // Close by, but the only way to the player leaves the window
+                if (Math.abs(x - player.x) <= Pathfinder.RADIUS / 2 && Math.abs(y - player.y) <= Pathfinder.RADIUS / 2) {
+                    List<Point> path = Pathfinder.findPath(map, x, y, player.x, player.y, 4096);
+                    if (path != null && !path.isEmpty()) {
+                        plan(i, path.get(0).x, path.get(0).y);
+                    }
+                    continue;
+                }
+
+                // Too far away for either, just head roughly the right way
+                if (dx != 0 && map.isFloor(x + dx, y) && monsterAt.get(x + dx, y) == TileIndex.NONE) {
+                    plan(i, x + dx, y);
+                } else if (dy != 0 && map.isFloor(x, y + dy) && monsterAt.get(x, y + dy) == TileIndex.NONE) {
+                    plan(i, x, y + dy);
+                }
+            }
+        }
+
+        private void plan(int monster, int x, int y) {
+            plans[monster] = PLAN_MOVE;
+            plannedX[monster] = x;
+            plannedY[monster] = y;
+        }
+
+        // Game entity classes
+
+        /**
+         * One floor of the dungeon and everything on it. In endless mode the whole world is one level that
+         * has no start or stairs. The view fields belong to whoever draws the game: a level prepared in the
+         * background can come with its field of view computed and its tiles drawn around the start.
+         */
+        class Level {
+            final int depth;
+            final TileMap map;
+            final EntityStore monsters = new EntityStore();
+            final EntityStore items = new EntityStore();
+            final TileIndex monsterAt = new TileIndex();
+            final TileIndex itemAt = new TileIndex();
+            final FieldOfView fov = new FieldOfView();
+            Point start, stairs, upStairs;
+            int camX, camY; // Where the camera starts
+            BufferedImage tileLayer; // Drawn around the start, or null
+
+            Level(int depth, TileMap map) {
+                this.depth = depth;
+                this.map = map;
+            }
+
+            boolean isFree(int x, int y) {
+                if (start != null && start.x == x && start.y == y) return false;
+                if (stairs != null && stairs.x == x && stairs.y == y) return false;
+                return monsterAt.get(x, y) == TileIndex.NONE && itemAt.get(x, y) == TileIndex.NONE;
+            }
+
+            // Every change to the entity stores goes through these, so the tile indexes never go stale
+
+            int addMonster(int x, int y, int hp, int attack) {
+                int monster = monsters.add(EntityStore.MONSTER, x, y, hp, hp, attack);
+                monsterAt.put(x, y, monster);
+                return monster;
+            }
+
+            void removeMonster(int monster) {
+                monsterAt.remove(monsters.x[monster], monsters.y[monster], monster);
+                int moved = monsters.remove(monster);
+                if (moved >= 0) {
+                    monsterAt.put(monsters.x[monster], monsters.y[monster], monster);
+                }
+            }
+
+            void moveMonster(int monster, int x, int y) {
+                monsterAt.move(monsters.x[monster], monsters.y[monster], x, y, monster);
+                monsters.x[monster] = x;
+                monsters.y[monster] = y;
+            }
+
+            void addItem(byte type, int x, int y) {
+                itemAt.put(x, y, items.add(type, x, y, 0, 0, 0));
+            }
+
+            void removeItem(int item) {
+                itemAt.remove(items.x[item], items.y[item], item);
+                int moved = items.remove(item);
+                if (moved >= 0) {
+                    itemAt.put(items.x[item], items.y[item], item);
+                }
+            }
+        }
+
+        /**
+         * The levels of this game that the player left, so going back finds them as they were. Every level
+         * left is packed into a direct buffer, with the tiles and the explored bits run-length encoded, on
+         * a packer thread when levels are prepared ahead so leaving a big level doesn't hold up the turn. The LIVE most
+         * recently left are also kept as they are, and going back to one of those is instant. Once the
+         * packed levels take more than MEMORY_BUDGET, the oldest go to a temporary file. Packed levels never
+         * change, so a saved game can share them (see {@link SaveFile}), and it reads the spilled ones back
+         * only when it's written, on the saver's thread.
+         * <p>
+         * Packed layout, all varints: start x, y, stairs x, y, 1 and up-stairs x, y or 0, runs of
+         * (tile byte, length) covering the map, alternating runs of unexplored and explored tiles, then
+         * the monsters (count, then type byte, x, y, hp, max hp, attack each) and items (count, then type
+         * byte, x, y each).
+         */
+        class VisitedLevels {
+            static final int LIVE = 2;
+            static final long MEMORY_BUDGET = 64L << 20;
+
+            private final Map<Integer, Level> live = new LinkedHashMap<>(); // Oldest first, all by depth
+            private final Map<Integer, Future<ByteBuffer>> packed = new LinkedHashMap<>(); // The live ones too
+            private final Map<Integer, long[]> spilled = new HashMap<>(); // Position and length in the file
+            private FileChannel spill;
+            private Path spillFile;
+            private long spillEnd;
+            // A new game empties the file while a save may still be reading it on another thread
+            private final Object spillLock = new Object();
+            private int spillGeneration; // One up every time the file is emptied
+
+            boolean contains(int depth) {
+                return packed.containsKey(depth) || spilled.containsKey(depth);
+            }
+
+            void put(Level left) {
+                // Nothing changes a level once it's been left, so it's packed as it is
+                packed.put(left.depth, prepareAhead
+                    ? packer().submit(() -> pack(left))
+                    : CompletableFuture.completedFuture(pack(left)));
+                live.put(left.depth, left);
+                if (live.size() > LIVE) {
+                    var oldest = live.entrySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                spillOverBudget();
+            }
+
+            /**
+             * Takes a level out of the cache, unpacking it if it has to.
+             * @return null if it isn't here
+             */
+            Level take(int depth) {
+                Future<ByteBuffer> pending = packed.remove(depth);
+                Level level = live.remove(depth);
+                if (level != null) {
+                    // It's packed from the level itself, so the game mustn't change it before that's done. Not
+                    // cancelled: a save being written may share the packed level.
+                    if (pending != null) awaitPacked(pending);
+                    return level;
+                }
+                try {
+                    if (pending != null) {
+                        return unpack(depth, pending.get().duplicate());
+                    }
+                    long[] region = spilled.remove(depth);
+                    if (region != null) {
+                        return unpack(depth, readSpilled(spill, region, spillGeneration));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace(); // Made again from its seed instead
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+
+            private void awaitPacked(Future<ByteBuffer> pending) {
+                try {
+                    pending.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(); // Only the packed level is lost, the live one goes on
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            /**
+             * The packed levels, for a saved game. Only references are copied here: ones still being packed
+             * are waited for when the save is written, and spilled ones are read back from the file then.
+             */
+            Map<Integer, Future<ByteBuffer>> snapshot() {
+                Map<Integer, Future<ByteBuffer>> levels = new LinkedHashMap<>(packed);
+                for (var entry : spilled.entrySet()) {
+                    FileChannel file = spill;
+                    long[] region = entry.getValue();
+                    int generation = spillGeneration;
+                    levels.put(entry.getKey(), new SpilledLevel(() -> readSpilled(file, region, generation)));
+                }
+                return levels;
+            }
+
+            private ByteBuffer readSpilled(FileChannel file, long[] region, int generation) throws IOException {
+                synchronized (spillLock) {
+                    if (generation != spillGeneration) {
+                        throw new IOException("The level was dropped from the file by a new game");
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate((int) region[1]);
+                    while (buffer.hasRemaining()) {
+                        if (file.read(buffer, region[0] + buffer.position()) < 0) throw new EOFException();
+                    }
+                    return buffer.flip();
+                }
+            }
+
+            void restore(Map<Integer, Future<ByteBuffer>> levels) {
+                // Spilled levels of a snapshot of this game are read before clear empties their file
+                for (Future<ByteBuffer> level : levels.values()) {
+                    if (level instanceof SpilledLevel spilledLevel) spilledLevel.run();
+                }
+                clear();
+                packed.putAll(levels);
+                spillOverBudget();
+            }
+
+            void clear() {
+                live.clear();
+                packed.clear();
+                spilled.clear();
+                spillEnd = 0;
+                synchronized (spillLock) {
+                    spillGeneration++;
+                    if (spill != null) {
+                        try {
+                            spill.truncate(0);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+
+            // Oldest packed levels out to the file until the rest fit the budget. Ones still being packed stay.
+            private void spillOverBudget() {
+                long bytes = 0;
+                for (Future<ByteBuffer> pending : packed.values()) {
+                    ByteBuffer buffer = getNow(pending);
+                    if (buffer != null) bytes += buffer.capacity();
+                }
+                var oldest = packed.entrySet().iterator();
+                while (bytes > MEMORY_BUDGET && oldest.hasNext()) {
+                    var entry = oldest.next();
+                    ByteBuffer buffer = getNow(entry.getValue());
+                    if (buffer == null) continue;
+                    try {
+                        if (spill == null) {
+                            spillFile = Files.createTempFile("dungeon-levels", ".bin");
+                            spillFile.toFile().deleteOnExit();
+                            spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        }
+                        long position = spillEnd;
+                        ByteBuffer data = buffer.duplicate();
+                        while (data.hasRemaining()) {
+                            spill.write(data, position + data.position());
+                        }
+                        spillEnd += buffer.capacity();
+                        spilled.put(entry.getKey(), new long[] { position, buffer.capacity() });
+                        oldest.remove();
+                        bytes -= buffer.capacity();
+                    } catch (IOException e) {
+                        e.printStackTrace(); // Stays in memory then
+                        return;
+                    }
+                }
+            }
+
+            // The packed level if it's ready, null while it's being packed or if that failed (take reports it)
+            private ByteBuffer getNow(Future<ByteBuffer> pending) {
+                if (!pending.isDone() || pending.isCancelled()) return null;
+                try {
+                    return pending.get();
+                } catch (ExecutionException e) {
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+
+            /**
+             * A level a snapshot found in the spill file, read by the first get on whichever thread that is.
+             */
+            private static class SpilledLevel extends FutureTask<ByteBuffer> {
+                SpilledLevel(Callable<ByteBuffer> read) {
+                    super(read);
+                }
+
+                @Override
+                public ByteBuffer get() throws InterruptedException, ExecutionException {
+                    run(); // Does nothing once it has run
+                    return super.get();
+                }
+            }
+
+            private ByteBuffer pack(Level level) {
+                // Measured first, so the direct buffer is allocated once at its exact size
+                int size = encode(level, null);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                encode(level, buffer);
+                return buffer.flip();
+            }
+
+            // Writes the level to the buffer, or with a null buffer only counts the bytes it would take
+            private int encode(Level level, ByteBuffer out) {
+                int size = 0;
+                size += put(out, level.start.x) + put(out, level.start.y);
+                size += put(out, level.stairs.x) + put(out, level.stairs.y);
+                if (level.upStairs != null) {
+                    size += put(out, 1) + put(out, level.upStairs.x) + put(out, level.upStairs.y);
+                } else {
+                    size += put(out, 0);
+                }
+
+                byte[] tiles = level.map.tiles;
+                for (int i = 0; i < tiles.length; ) {
+                    int run = i;
+                    while (run < tiles.length && tiles[run] == tiles[i]) run++;
+                    if (out != null) out.put(tiles[i]);
+                    size += 1 + put(out, run - i);
+                    i = run;
+                }
+                long[] explored = level.map.explored;
+                boolean bit = false;
+                for (int i = 0; i < tiles.length; bit = !bit) {
+                    int run = Math.min(tiles.length, nextChange(explored, i, bit));
+                    size += put(out, run - i);
+                    i = run;
+                }
+
+                EntityStore monsters = level.monsters;
+                size += put(out, monsters.size);
+                for (int i = 0; i < monsters.size; i++) {
+                    if (out != null) out.put(monsters.type[i]);
+                    size += 1 + put(out, monsters.x[i]) + put(out, monsters.y[i]) + put(out, monsters.hp[i])
+                          + put(out, monsters.maxHp[i]) + put(out, monsters.attack[i]);
+                }
+                EntityStore items = level.items;
+                size += put(out, items.size);
+                for (int i = 0; i < items.size; i++) {
+                    if (out != null) out.put(items.type[i]);
+                    size += 1 + put(out, items.x[i]) + put(out, items.y[i]);
+                }
+                return size;
+            }
+
+            private int put(ByteBuffer out, int value) {
+                if (out != null) SaveFile.putVarint(out, value);
+                return SaveFile.varintSize(value);
+            }
+
+            // The first tile from i on whose explored bit isn't bit, a word at a time
+            private int nextChange(long[] explored, int i, boolean bit) {
+                int word = i >> 6;
+                long bits = (bit ? ~explored[word] : explored[word]) & (-1L << i);
+                while (bits == 0) {
+                    if (++word == explored.length) return explored.length << 6;
+                    bits = bit ? ~explored[word] : explored[word];
+                }
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+
+            private Level unpack(int depth, ByteBuffer in) {
+                TileMap map = new TileMap(mapWidth, mapHeight);
+                Level level = new Level(depth, map);
+                level.start = new Point(SaveFile.getVarint(in), SaveFile.getVarint(in));
+                level.stairs = new Point(SaveFile.getVarint(in), SaveFile.getVarint(in));
+                if (SaveFile.getVarint(in) != 0) {
+                    level.upStairs = new Point(SaveFile.getVarint(in), SaveFile.getVarint(in));
+                }
+
+                byte[] tiles = map.tiles;
+                for (int i = 0; i < tiles.length; ) {
+                    byte tile = in.get();
+                    int run = SaveFile.getVarint(in);
+                    Arrays.fill(tiles, i, i + run, tile);
+                    i += run;
+                }
+                boolean bit = false;
+                for (int i = 0; i < tiles.length; bit = !bit) {
+                    int run = SaveFile.getVarint(in);
+                    if (bit) {
+                        for (int j = i; j < i + run; j++) {
+                            map.explored[j >> 6] |= 1L << j;
+                        }
+                    }
+                    i += run;
+                }
+
+                int monsters = SaveFile.getVarint(in);
+                for (int i = 0; i < monsters; i++) {
+                    in.get(); // Always a MONSTER so far
+                    int x = SaveFile.getVarint(in), y = SaveFile.getVarint(in), hp = SaveFile.getVarint(in);
+                    int maxHp = SaveFile.getVarint(in), attack = SaveFile.getVarint(in);
+                    int monster = level.addMonster(x, y, maxHp, attack);
+                    level.monsters.hp[monster] = hp;
+                }
+                int items = SaveFile.getVarint(in);
+                for (int i = 0; i < items; i++) {
+                    byte type = in.get();
+                    level.addItem(type, SaveFile.getVarint(in), SaveFile.getVarint(in));
+                }
+                return level;
+            }
+        }
+
+        class Player {
+            int x, y;
+            int hp, maxHp;
+            int attackPower;
+            int potionCount;
+            int experience;
+            int potionsUsed;
+
+            Player(int x, int y) {
+                this.x = x;
+                this.y = y;
+                this.maxHp = 100;
+                this.hp = maxHp;
+                this.attackPower = 12;
+                this.potionCount = 3;
+                this.experience = 0;
+            }
+
+            void attack(int monster) {
+                monsters.hp[monster] -= this.attackPower;
+            }
+
+            void pickupItem(byte type) {
+                if (type == EntityStore.HEALTH_ELIXIR) {
+                    this.potionCount++;
+                    if (this.hp < this.maxHp * 0.7) {
+                        usePotion();
+                    }
+                } else if (type == EntityStore.POWER_CRYSTAL) {
+                    this.attackPower += 5;
+                }
+            }
+
+            void usePotion() {
+                if (potionCount > 0 && hp < maxHp) {
+                    this.hp += 35;
+                    if (this.hp > this.maxHp) this.hp = this.maxHp;
+                    this.potionCount--;
+                    this.potionsUsed++;
+                    message = "✨ The elixir restores your vitality! (+35 HP)";
+                } else if (potionCount <= 0) {
+                    message = "You have no potions left!";
+                } else {
+                    message = "You are already at full health!";
+                }
+            }
+
+            void gainExperience(int exp) {
+                this.experience += exp;
+                if (this.experience >= 50 && this.experience < 60) {
+                    this.maxHp += 20;
+                    this.hp += 20;
+                    this.attackPower += 3;
+                    message += " You feel stronger! (+20 Max HP, +3 Attack)";
+                }
+            }
+        }
+
+        // Map generation
+        class MapGenerator {
+            // Cell size on big maps: the largest room (9) plus a wall on each side and a bit of play
+            private static final int CELL = 12;
+            // Cells a room links to: the right and the row below (its other neighbours link to it), and two
+            // cells away to bridge an empty cell
+            private static final int[] NEIGHBOURS_X = {1, -1, 0, 1, 2, 0};
+            private static final int[] NEIGHBOURS_Y = {0, 1, 1, 1, 0, 2};
+
+            private final int width, height;
+            private final TileMap map;
+            private final List<Rectangle> rooms = new ArrayList<>();
+            private final Random rand;
+
+            // Generates into an existing (all wall) map, e.g. a chunk of the endless world
+            MapGenerator(TileMap map, Random rand) {
+                this.width = map.width;
+                this.height = map.height;
+                this.map = map;
+                this.rand = rand;
+            }
+
+            public TileMap generateMap() {
+                // 12 attempts on the classic 35x22 map, the same density on bigger ones
+                int maxRooms = Math.max(12, (int) (12L * width * height / (35 * 22)));
+                int columns = (width - 1) / CELL, rows = (height - 1) / CELL;
+                if (maxRooms > 12 && columns > 0 && rows > 0) {
+                    generateGrid(columns, rows);
+                    return map;
+                }
+
+                for (int i = 0; i < maxRooms; i++) {
+                    int w = rand.nextInt(6) + 4;
+                    int h = rand.nextInt(6) + 4;
+                    int x = rand.nextInt(width - w - 1) + 1;
+                    int y = rand.nextInt(height - h - 1) + 1;
+
+                    // Only rooms are carved so far, so an all-wall area can't overlap another room.
+                    // Checking the tiles is O(room area) instead of O(rooms placed).
+                    Rectangle newRoom = new Rectangle(x, y, w, h);
+                    boolean failed = !map.isSolid(x, y, w, h);
+                    if (!failed) {
+                        carveRoom(newRoom);
+                        rooms.add(newRoom);
+                    }
+                }
+
+                for (int i = 0; i < rooms.size() - 1; i++) {
+                    Point center1 = rooms.get(i).getCenter();
+                    Point center2 = rooms.get(i + 1).getCenter();
+                    carveCorridor(center1, center2);
+                }
+
+                return map;
+            }
+
+            /**
+             * Big maps and chunks: random attempts would need hundreds of thousands of tries for a 4096x4096
+             * map, and a chain of corridors wanders. Instead the map is cut into CELL x CELL cells, and all
+             * but one in ten get one room somewhere inside, so rooms never overlap and nothing is retried.
+             * <p>
+             * Corridors follow a minimum spanning tree (Kruskal) over the rooms of nearby cells, so every
+             * room is linked by the shortest corridors that connect them all. The cells already tell which
+             * rooms are neighbours, and distances are small, so the edges are bucket sorted by length in two
+             * passes instead of being collected and sorted. Only when empty cells split the rooms into groups
+             * the tree can't join does a flood fill look for the rooms that can't be reached.
+             */
+            private void generateGrid(int columns, int rows) {
+                int[] roomAt = new int[columns * rows];
+                int[] cellOf = new int[columns * rows];
+                int[] centerX = new int[columns * rows], centerY = new int[columns * rows];
+                for (int cell = 0; cell < roomAt.length; cell++) {
+                    roomAt[cell] = -1;
+                    // One draw per cell, cut into fields: a field of b bits times n, shifted right by b, is
+                    // uniform enough in [0, n) and saves four calls into Random for each of 100,000 cells
+                    long bits = rand.nextLong();
+                    if (((bits & 0xFFFF) * 10) >>> 16 == 0) continue;
+                    int w = 4 + (int) ((((bits >>> 16) & 0xFFFF) * 6) >>> 16);
+                    int h = 4 + (int) ((((bits >>> 32) & 0xFFFF) * 6) >>> 16);
+                    // At least one wall between rooms of neighbouring cells
+                    int x = 1 + cell % columns * CELL + (int) ((((bits >>> 48) & 0xFF) * (CELL - w)) >>> 8);
+                    int y = 1 + cell / columns * CELL + (int) (((bits >>> 56) * (CELL - h)) >>> 8);
+                    Rectangle room = new Rectangle(x, y, w, h);
+                    carveRoom(room);
+                    int index = rooms.size();
+                    rooms.add(room);
+                    roomAt[cell] = index;
+                    cellOf[index] = cell;
+                    centerX[index] = x + w / 2;
+                    centerY[index] = y + h / 2;
+                }
+                int count = rooms.size();
+                if (count == 0) return;
+
+                // An edge is room * 8 + the neighbour it leads to. Centres are at most 3 cells apart per axis.
+                int[] bucketStart = new int[6 * CELL + 2];
+                int edges = 0;
+                for (int room = 0; room < count; room++) {
+                    for (int k = 0; k < NEIGHBOURS_X.length; k++) {
+                        int other = neighbour(roomAt, cellOf[room], k, columns, rows);
+                        if (other < 0) continue;
+                        bucketStart[distance(centerX, centerY, room, other) + 1]++;
+                        edges++;
+                    }
+                }
+                for (int d = 1; d < bucketStart.length; d++) bucketStart[d] += bucketStart[d - 1];
+                int[] sorted = new int[edges];
+                for (int room = 0; room < count; room++) {
+                    for (int k = 0; k < NEIGHBOURS_X.length; k++) {
+                        int other = neighbour(roomAt, cellOf[room], k, columns, rows);
+                        if (other >= 0) sorted[bucketStart[distance(centerX, centerY, room, other)]++] = room * 8 + k;
+                    }
+                }
+
+                int[] parent = new int[count];
+                for (int room = 0; room < count; room++) parent[room] = room;
+                int links = 0;
+                for (int i = 0; i < edges && links < count - 1; i++) {
+                    int room = sorted[i] >> 3;
+                    int other = neighbour(roomAt, cellOf[room], sorted[i] & 7, columns, rows);
+                    int a = find(parent, room), b = find(parent, other);
+                    if (a == b) continue;
+                    parent[a] = b;
+                    links++;
+                    carveCorridor(new Point(centerX[room], centerY[room]), new Point(centerX[other], centerY[other]));
+                }
+
+                // A tree over every room connects them all. If empty cells cut some rooms off, find them.
+                if (links < count - 1) connectUnreached(count, centerX, centerY);
+            }
+
+            /**
+             * Flood fills from the first room and links every room the fill didn't reach to the nearest room
+             * before it. Rooms are in cell order, so everything before an unreached room is linked up already.
+             */
+            private void connectUnreached(int count, int[] centerX, int[] centerY) {
+                long[] unreached = map.floorBits();
+                map.floodFill(centerX[0], centerY[0], unreached);
+                for (int room = 1; room < count; room++) {
+                    int i = centerY[room] * width + centerX[room];
+                    if ((unreached[i >> 6] & (1L << i)) == 0) continue;
+                    int nearest = 0;
+                    for (int other = 1; other < room; other++) {
+                        if (distance(centerX, centerY, room, other) < distance(centerX, centerY, room, nearest)) nearest = other;
+                    }
+                    carveCorridor(new Point(centerX[nearest], centerY[nearest]), new Point(centerX[room], centerY[room]));
+                    map.floodFill(centerX[room], centerY[room], unreached);
+                }
+            }
+
+            /**
+             * @return the room in the k-th neighbouring cell of cell, or -1 if it is empty or off the map
+             */
+            private int neighbour(int[] roomAt, int cell, int k, int columns, int rows) {
+                int x = cell % columns + NEIGHBOURS_X[k], y = cell / columns + NEIGHBOURS_Y[k];
+                if (x < 0 || x >= columns || y >= rows) return -1;
+                return roomAt[y * columns + x];
+            }
+
+            private int distance(int[] centerX, int[] centerY, int a, int b) {
+                return Math.abs(centerX[a] - centerX[b]) + Math.abs(centerY[a] - centerY[b]);
+            }
+
+            private int find(int[] parent, int room) {
+                while (parent[room] != room) {
+                    parent[room] = parent[parent[room]];
+                    room = parent[room];
+                }
+                return room;
+            }
+
+            private void carveRoom(Rectangle room) {
+                map.fill(room.x, room.y, room.width, room.height, TileMap.FLOOR);
+            }
+
+            private void carveCorridor(Point p1, Point p2) {
+                int x = p1.x;
+                int y = p1.y;
+
+                while (x != p2.x) {
+                    map.set(x, y, TileMap.FLOOR);
+                    x += Integer.compare(p2.x, x);
+                }
+                while (y != p2.y) {
+                    map.set(x, y, TileMap.FLOOR);
+                    y += Integer.compare(p2.y, y);
+                }
+            }
+
+            public List<Rectangle> getRooms() {
+                return rooms;
+            }
+
+            public Point getNearestRoomCenter(Point p) {
+                Point nearest = new Point(width / 2, height / 2);
+                int best = Integer.MAX_VALUE;
+                for (Rectangle room : rooms) {
+                    Point center = room.getCenter();
+                    int distance = Math.abs(center.x - p.x) + Math.abs(center.y - p.y);
+                    if (distance < best) {
+                        best = distance;
+                        nearest = center;
+                    }
+                }
+                return nearest;
+            }
+
+            public Point getRandomRoomCenter() {
+                if (rooms.isEmpty()) return new Point(width / 2, height / 2);
+                return rooms.get(rand.nextInt(rooms.size())).getCenter();
+            }
+        }
+
+        class Rectangle extends java.awt.Rectangle {
+            public Rectangle(int x, int y, int width, int height) {
+                super(x, y, width, height);
+            }
+
+            public Point getCenter() {
+                return new Point(x + width / 2, y + height / 2);
+            }
+        }
+    }
+
+    /**
+     * A saved game, with everything needed to carry on exactly where it left off: the level, the player,
+     * the depth and turn count and the seeds. {@link #capture} copies the state on the game's thread (a few
+     * array copies, even for a 4096x4096 level), so writing the file can happen on any thread.
+     * <p>
+     * The file is little more than the arrays themselves. Tiles are either WALL or FLOOR, so they take one
+     * bit each, and the explored bits follow as they are. Everything else is a zigzag varint, mostly one or
+     * two bytes. The levels the player left behind are stored the way the game keeps them packed. Layout,
+     * version 2 (version 1 is the same without the visited levels):
+     * <pre>
+     *   int magic "DCSV", int version
+     *   varint width, height, depth, turns; long game seed, seed state
+     *   varint start x, y, stairs x, y
+     *   varint player x, y, hp, maxHp, attack, potions, experience, potions used
+     *   long[] tile bits, long[] explored bits, (width * height + 63) / 64 of each
+     *   varint monster count, then x, y, hp, maxHp, attack of each
+     *   varint item count, then type, x, y of each
+     *   varint visited level count, then depth, length and the packed level of each
+     * </pre>
+     */
+    static class SaveFile {
+        static final int MAGIC = 0x44435356; // "DCSV"
+        static final int VERSION = 2;
+        private static final VarHandle TILES_AS_LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+        private int depth, turns;
+        private long gameSeed, seedState;
+        private Point start, stairs;
+        private int[] player;
+        private TileMap map;
+        private EntityStore monsters, items;
+        private Map<Integer, Future<ByteBuffer>> visited; // The levels left behind, packed, by depth
+
+        private SaveFile() {
+        }
+
+        /**
+         * Copies the game's state, on the game's thread. The levels left behind are only referenced, the
+         * ones the game spilled to its file are read back when the save is written (or see {@link #readLevels}).
+         */
+        static SaveFile capture(Game game) {
+            if (game.endless) {
+                throw new IllegalStateException("The endless world can't be saved");
+            }
+            SaveFile save = new SaveFile();
+            save.depth = game.dungeonLevel;
+            save.turns = game.turns;
+            save.gameSeed = game.gameSeed;
+            save.seedState = game.seedState;
+            save.start = new Point(game.level.start);
+            save.stairs = new Point(game.stairs);
+            Game.Player p = game.player;
+            save.player = new int[] { p.x, p.y, p.hp, p.maxHp, p.attackPower, p.potionCount, p.experience, p.potionsUsed };
+            save.map = game.map.copy();
+            save.monsters = game.monsters.copy();
+            save.items = game.items.copy();
+            save.visited = game.visited.snapshot();
+            return save;
+        }
+
+        /**
+         * Reads every level left behind now, for a save that's kept in memory: a new game empties the file
+         * the spilled ones are in.
+         */
+        SaveFile readLevels() {
+            visited.values().forEach(SaveFile::packed);
+            return this;
+        }
+
+        /**
+         * Writes to a file next to the target and moves it over at the end, so a crash halfway never leaves
+         * a broken save behind. Saves go through a heap buffer rather than a file mapping: a mapping stays
+         * until it is garbage collected, and on Windows a mapped file can't be replaced.
+         */
+        void write(Path file) throws IOException {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size()));
+            write(buffer);
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Writes exactly {@link #size} bytes at the buffer's position.
+         */
+        void write(ByteBuffer buffer) {
+            buffer.putInt(MAGIC).putInt(VERSION);
+            putVarint(buffer, map.width);
+            putVarint(buffer, map.height);
+            putVarint(buffer, depth);
+            putVarint(buffer, turns);
+            buffer.putLong(gameSeed).putLong(seedState);
+            putVarint(buffer, start.x);
+            putVarint(buffer, start.y);
+            putVarint(buffer, stairs.x);
+            putVarint(buffer, stairs.y);
+            for (int value : player) {
+                putVarint(buffer, value);
+            }
+
+            int words = map.explored.length;
+            LongBuffer longs = buffer.slice().order(buffer.order()).asLongBuffer();
+            longs.put(packTiles(map.tiles, words));
+            longs.put(map.explored);
+            buffer.position(buffer.position() + words * 16);
+
+            putVarint(buffer, monsters.size);
+            for (int i = 0; i < monsters.size; i++) {
+                putVarint(buffer, monsters.x[i]);
+                putVarint(buffer, monsters.y[i]);
+                putVarint(buffer, monsters.hp[i]);
+                putVarint(buffer, monsters.maxHp[i]);
+                putVarint(buffer, monsters.attack[i]);
+            }
+            putVarint(buffer, items.size);
+            for (int i = 0; i < items.size; i++) {
+                putVarint(buffer, items.type[i]);
+                putVarint(buffer, items.x[i]);
+                putVarint(buffer, items.y[i]);
+            }
+
+            putVarint(buffer, visited.size());
+            for (var level : visited.entrySet()) {
+                ByteBuffer packed = packed(level.getValue());
+                putVarint(buffer, level.getKey());
+                putVarint(buffer, packed.remaining());
+                buffer.put(packed);
+            }
+        }
+
+        private static ByteBuffer packed(Future<ByteBuffer> level) {
+            try {
+                return level.get().duplicate();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("A visited level couldn't be packed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static SaveFile read(Path file) throws IOException {
+            return read(ByteBuffer.wrap(Files.readAllBytes(file))); // Not mapped, see write
+        }
+
+        /**
+         * A game only restores a save of its own map size: its camera, pathfinder and levels left behind
+         * all assume it.
+         */
+        void checkSize(int width, int height) throws IOException {
+            if (map.width != width || map.height != height) {
+                throw new IOException("The saved game is " + map.width + "x" + map.height
+                                      + ", not " + width + "x" + height + " (see --size)");
+            }
+        }
+
+        static SaveFile read(ByteBuffer buffer) throws IOException {
+            try {
+                if (buffer.getInt() != MAGIC) throw new IOException("Not a saved game");
+                int version = buffer.getInt();
+                if (version != VERSION && version != 1) throw new IOException("Saved game version " + version + " isn't supported");
+
+                SaveFile save = new SaveFile();
+                int width = getVarint(buffer), height = getVarint(buffer);
+                save.depth = getVarint(buffer);
+                save.turns = getVarint(buffer);
+                save.gameSeed = buffer.getLong();
+                save.seedState = buffer.getLong();
+                save.start = new Point(getVarint(buffer), getVarint(buffer));
+                save.stairs = new Point(getVarint(buffer), getVarint(buffer));
+                save.player = new int[8];
+                for (int i = 0; i < save.player.length; i++) {
+                    save.player[i] = getVarint(buffer);
+                }
+
+                save.map = new TileMap(width, height);
+                int words = save.map.explored.length;
+                long[] bits = new long[words];
+                LongBuffer longs = buffer.slice().order(buffer.order()).asLongBuffer();
+                longs.get(bits);
+                longs.get(save.map.explored);
+                buffer.position(buffer.position() + words * 16);
+                unpackTiles(bits, save.map.tiles);
+
+                save.monsters = new EntityStore();
+                for (int i = getVarint(buffer); i > 0; i--) {
+                    save.monsters.add(EntityStore.MONSTER, getVarint(buffer), getVarint(buffer),
+                                      getVarint(buffer), getVarint(buffer), getVarint(buffer));
+                }
+                save.items = new EntityStore();
+                for (int i = getVarint(buffer); i > 0; i--) {
+                    save.items.add((byte) getVarint(buffer), getVarint(buffer), getVarint(buffer), 0, 0, 0);
+                }
+                save.visited = new LinkedHashMap<>();
+                if (version >= 2) {
+                    for (int i = getVarint(buffer); i > 0; i--) {
+                        int depth = getVarint(buffer), length = getVarint(buffer);
+                        ByteBuffer level = ByteBuffer.allocate(length).put(buffer.slice(buffer.position(), length)).flip();
+                        buffer.position(buffer.position() + length);
+                        save.visited.put(depth, CompletableFuture.completedFuture(level));
+                    }
+                }
+                return save;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Saved game is cut short", e);
+            }
+        }
+
+        /**
+         * Puts the game into the saved state. The save itself isn't touched, so it can be restored again.
+         */
+        void restore(Game game) {
+            if (game.endless) {
+                throw new IllegalStateException("The endless world can't be loaded into");
+            }
+            Game.Level level = game.new Level(depth, map.copy());
+            level.start = new Point(start);
+            level.stairs = new Point(stairs);
+            if (depth > 1) {
+                level.upStairs = new Point(start);
+            }
+            for (int i = 0; i < monsters.size; i++) {
+                int monster = level.addMonster(monsters.x[i], monsters.y[i], monsters.maxHp[i], monsters.attack[i]);
+                level.monsters.hp[monster] = monsters.hp[i];
+            }
+            for (int i = 0; i < items.size; i++) {
+                level.addItem(items.type[i], items.x[i], items.y[i]);
+            }
+            Game.Player p = game.new Player(player[0], player[1]);
+            p.hp = player[2];
+            p.maxHp = player[3];
+            p.attackPower = player[4];
+            p.potionCount = player[5];
+            p.experience = player[6];
+            p.potionsUsed = player[7];
+            game.restore(level, p, depth, turns, gameSeed, seedState, visited);
+        }
+
+        // Tiles are 0 or 1, so eight of them read as one long have a single bit in each byte, and one
+        // multiplication gathers those into a byte. An eighth of the work of going tile by tile.
+        private static long[] packTiles(byte[] tiles, int words) {
+            long[] bits = new long[words];
+            int whole = tiles.length & ~7;
+            for (int i = 0; i < whole; i += 8) {
+                long eight = (long) TILES_AS_LONGS.get(tiles, i);
+                bits[i >> 6] |= ((eight * 0x0102040810204080L) >>> 56) << (i & 63);
+            }
+            for (int i = whole; i < tiles.length; i++) {
+                bits[i >> 6] |= (long) tiles[i] << i;
+            }
+            return bits;
+        }
+
+        // The other way round: a byte's bits spread over eight bytes, each masked and rounded to 0 or 1
+        private static void unpackTiles(long[] bits, byte[] tiles) {
+            int whole = tiles.length & ~7;
+            for (int i = 0; i < whole; i += 8) {
+                long eight = (bits[i >> 6] >>> (i & 63)) & 0xFF;
+                long spread = (eight * 0x0101010101010101L) & 0x8040201008040201L;
+                TILES_AS_LONGS.set(tiles, i, ((spread + 0x7F7F7F7F7F7F7F7FL) & 0x8080808080808080L) >>> 7);
+            }
+            for (int i = whole; i < tiles.length; i++) {
+                tiles[i] = (byte) ((bits[i >> 6] >>> i) & 1);
+            }
+        }
+
+        // Exactly, so the buffer is allocated once and the file has no slack at the end
+        long size() {
+            long size = 8 + 16 + map.explored.length * 16L;
+            for (int value : new int[] { map.width, map.height, depth, turns, start.x, start.y, stairs.x, stairs.y }) {
+                size += varintSize(value);
+            }
+            for (int value : player) {
+                size += varintSize(value);
+            }
+            size += varintSize(monsters.size) + varintSize(items.size);
+            for (int i = 0; i < monsters.size; i++) {
+                size += varintSize(monsters.x[i]) + varintSize(monsters.y[i]) + varintSize(monsters.hp[i])
+                      + varintSize(monsters.maxHp[i]) + varintSize(monsters.attack[i]);
+            }
+            for (int i = 0; i < items.size; i++) {
+                size += varintSize(items.type[i]) + varintSize(items.x[i]) + varintSize(items.y[i]);
+            }
+            size += varintSize(visited.size());
+            for (var level : visited.entrySet()) {
+                int length = packed(level.getValue()).remaining();
+                size += varintSize(level.getKey()) + varintSize(length) + length;
+            }
+            return size;
+        }
+
+        static int varintSize(int value) {
+            int zigzag = (value << 1) ^ (value >> 31);
+            return zigzag == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(zigzag)) / 7;
+        }
+
+        static void putVarint(ByteBuffer buffer, int value) {
+            int zigzag = (value << 1) ^ (value >> 31); // Small negative numbers stay short too
+            while ((zigzag & ~0x7F) != 0) {
+                buffer.put((byte) (zigzag & 0x7F | 0x80));
+                zigzag >>>= 7;
+            }
+            buffer.put((byte) zigzag);
+        }
+
+        static int getVarint(ByteBuffer buffer) {
+            int zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                zigzag |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+
+    /**
+     * An append-only log of a session: the settings that shape the game, then every player command as it
+     * is accepted. A move is a single byte. New games carry their seed, loads carry the whole save, and
+     * every level entered is noted with its seed so a replay can tell the moment it stops matching.
+     * Everything else follows from the seeds, so this is all it takes to play a session again exactly
+     * (see {@link Replay}). The endless world isn't journaled: its chunks arrive whenever the loader
+     * threads finish them, so it doesn't replay the same way twice.
+     * <p>
+     * Layout: int magic "DCJR", int version, varint map width, height and extra monsters, then records of a
+     * type byte and its fields:
+     * <pre>
+     *   a Game command (MOVE_UP .. DRINK)
+     *   NEW_GAME  long game seed
+     *   LEVEL     varint depth, long level seed
+     *   LOAD      varint length, a SaveFile
+     * </pre>
+     */
+    static class Journal implements Closeable {
+        static final int MAGIC = 0x44434A52; // "DCJR"
+        static final int VERSION = 1;
+        static final byte NEW_GAME = 16, LEVEL = 17, LOAD = 18; // Game commands are all below 16
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        Journal(Path file, Settings settings) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            SaveFile.putVarint(buffer, settings.mapWidth);
+            SaveFile.putVarint(buffer, settings.mapHeight);
+            SaveFile.putVarint(buffer, settings.stressMonsters);
+            flush();
+        }
+
+        void command(byte command) throws IOException {
+            buffer.put(command);
+            flush();
+        }
+
+        void newGame(long seed) throws IOException {
+            buffer.put(NEW_GAME).putLong(seed);
+            flush();
+        }
+
+        void level(int depth, long seed) throws IOException {
+            buffer.put(LEVEL);
+            SaveFile.putVarint(buffer, depth);
+            buffer.putLong(seed);
+            flush();
+        }
+
+        void load(SaveFile save) throws IOException {
+            int size = (int) save.size();
+            ByteBuffer record = ByteBuffer.allocate(1 + 5 + size);
+            record.put(LOAD);
+            SaveFile.putVarint(record, size);
+            save.write(record);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+
+        // Every record goes out straight away, a session that crashes is the one most worth replaying
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * A journal read back: the settings it was recorded with and its inputs (commands, new games and
+         * loads) in order, with the level each one ended up on.
+         */
+        static class Recording {
+            final Settings settings = new Settings();
+            int size;
+            byte[] inputs = new byte[1024];
+            long[] seeds = new long[1024]; // Of NEW_GAME inputs
+            int[] depths = new int[1024]; // The last level entered during each input, 0 for none
+            long[] levelSeeds = new long[1024];
+            final Map<Integer, SaveFile> loads = new HashMap<>();
+
+            static Recording read(Path file) throws IOException {
+                // Read whole, not mapped, for the same reason as a save (see SaveFile.write)
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+                if (buffer.getInt() != MAGIC) throw new IOException("Not a journal: " + file);
+                int version = buffer.getInt();
+                if (version != VERSION) throw new IOException("Journal version " + version + " isn't supported");
+
+                Recording recording = new Recording();
+                recording.settings.mapWidth = SaveFile.getVarint(buffer);
+                recording.settings.mapHeight = SaveFile.getVarint(buffer);
+                recording.settings.stressMonsters = SaveFile.getVarint(buffer);
+                while (buffer.hasRemaining()) {
+                    byte type = buffer.get();
+                    try {
+                        if (type == LEVEL) {
+                            int depth = SaveFile.getVarint(buffer);
+                            long seed = buffer.getLong();
+                            if (recording.size > 0) {
+                                recording.depths[recording.size - 1] = depth;
+                                recording.levelSeeds[recording.size - 1] = seed;
+                            }
+                            continue;
+                        }
+                        int input = recording.add(type);
+                        if (type == NEW_GAME) {
+                            recording.seeds[input] = buffer.getLong();
+                        } else if (type == LOAD) {
+                            int length = SaveFile.getVarint(buffer);
+                            ByteBuffer save = buffer.slice(buffer.position(), length);
+                            buffer.position(buffer.position() + length);
+                            SaveFile loaded = SaveFile.read(save);
+                            loaded.checkSize(recording.settings.mapWidth, recording.settings.mapHeight);
+                            recording.loads.put(input, loaded);
+                        } else if (type < 0 || type > Game.DRINK) {
+                            throw new IOException("Unknown journal record " + type);
+                        }
+                    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                        // Cut off mid-record by a crash, everything before it still counts
+                        recording.size = Math.max(0, recording.size - (type == LEVEL ? 0 : 1));
+                        break;
+                    }
+                }
+                return recording;
+            }
+
+            private int add(byte input) {
+                if (size == inputs.length) {
+                    int capacity = size * 2;
+                    inputs = Arrays.copyOf(inputs, capacity);
+                    seeds = Arrays.copyOf(seeds, capacity);
+                    depths = Arrays.copyOf(depths, capacity);
+                    levelSeeds = Arrays.copyOf(levelSeeds, capacity);
+                }
+                inputs[size] = input;
+                return size++;
+            }
+        }
+    }
+
+    /**
+     * Plays a {@link Journal.Recording} back into a game, one input at a time, checking that every level
+     * comes out with the seed it was recorded with. Every CHECKPOINT_INTERVAL inputs the state is kept
+     * in memory (a SaveFile that's never written out), so seeking back only replays from the nearest
+     * checkpoint instead of from the start.
+     */
+    static class Replay {
+        static final int CHECKPOINT_INTERVAL = 1000;
+
+        final Game game;
+        final Journal.Recording recording;
+        private int position; // Inputs played so far
+        private final List<SaveFile> checkpoints = new ArrayList<>(); // [k] is the state after k * interval inputs
+        private String divergence; // Where the replay first stopped matching the recording, or null
+
+        Replay(Game game, Journal.Recording recording) {
+            this.game = game;
+            this.recording = recording;
+        }
+
+        int position() {
+            return position;
+        }
+
+        int length() {
+            return recording.size;
+        }
+
+        String divergence() {
+            return divergence;
+        }
+
+        /**
+         * @return false at the end of the recording
+         */
+        boolean step() {
+            if (position == recording.size) return false;
+            if (position % CHECKPOINT_INTERVAL == 0 && position / CHECKPOINT_INTERVAL == checkpoints.size()) {
+                checkpoints.add(position == 0 ? null : SaveFile.capture(game).readLevels()); // The first input starts a game anyway
+            }
+
+            byte input = recording.inputs[position];
+            if (input == Journal.NEW_GAME) {
+                game.newGame(recording.seeds[position]);
+            } else if (input == Journal.LOAD) {
+                recording.loads.get(position).restore(game);
+            } else {
+                game.play(input);
+            }
+            int depth = recording.depths[position];
+            if (depth != 0 && divergence == null
+                    && (game.dungeonLevel != depth || game.levelSeed(depth) != recording.levelSeeds[position])) {
+                divergence = "Input " + position + " should have entered level " + depth + ", but the game is on level "
+                           + game.dungeonLevel + " with another seed";
+            }
+            position++;
+            return true;
+        }
+
+        /**
+         * Gets to the state after the given number of inputs, from the nearest checkpoint at or before it
+         * when that's closer than where the replay is now.
+         */
+        void seek(int target) {
+            target = Math.max(0, Math.min(target, recording.size));
+            int checkpoint = Math.min(target / CHECKPOINT_INTERVAL, checkpoints.size() - 1);
+            if (checkpoint >= 0 && (target < position || checkpoint * CHECKPOINT_INTERVAL > position)) {
+                SaveFile state = checkpoints.get(checkpoint);
+                if (state != null) {
+                    state.restore(game);
+                }
+                position = checkpoint * CHECKPOINT_INTERVAL;
+            }
+            while (position < target) {
+                step();
+            }
+        }
+
+        /**
+         * Plays a journal as fast as it goes, without a window, and prints how it ended.
+         */
+        static void run(Settings settings, PrintStream out) throws IOException {
+            Journal.Recording recording = Journal.Recording.read(settings.replayFile);
+            Replay replay = new Replay(new Game(recording.settings, 0, false, true), recording);
+            int target = settings.seekTo >= 0 ? settings.seekTo : recording.size;
+
+            long start = System.nanoTime();
+            replay.seek(target);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Game game = replay.game;
+            out.printf("Replayed %d of %d inputs in %.3f s (%.0f/s)%n", replay.position(), recording.size, seconds,
+                       replay.position() / seconds);
+            if (replay.position() > 0) {
+                out.printf("Level %d, turn %d, %d/%d HP, %d experience, %d potions%s%n", game.dungeonLevel, game.turns,
+                           game.player.hp, game.player.maxHp, game.player.experience, game.player.potionCount,
+                           game.isOver() ? ", dead" : "");
+            }
+            out.println(replay.divergence() == null ? "Every level matched the recording" : replay.divergence());
+        }
+    }
+
+    /**
+     * Plays games headless with a bot, on every core at once, and sums up how they went: how deep the bot
+     * gets, where it dies, how much experience each level is worth and how many potions it takes. Each game
+     * gets its own seed derived from the settings' one, so a run gives the same numbers every time no matter
+     * how the games end up spread over the threads.
+     */
+    static class Simulation {
+        /**
+         * Decides and plays one turn.
+         */
+        interface Policy {
+            void takeTurn(Game game);
+        }
+
+        static final int MAX_DEPTH = 100; // Deeper levels are counted with this one
+        static final int MAX_TURNS = 100_000; // A game still going after this many is cut off
+
+        /**
+         * Totals per depth. Each thread fills its own and they're added up at the end.
+         */
+        static class Stats {
+            long games, turns, unfinished;
+            final long[] reached = new long[MAX_DEPTH + 1];
+            final long[] died = new long[MAX_DEPTH + 1];
+            final long[] turnsOn = new long[MAX_DEPTH + 1];
+            final long[] experienceOn = new long[MAX_DEPTH + 1];
+            final long[] potionsOn = new long[MAX_DEPTH + 1];
+
+            void add(Stats other) {
+                games += other.games;
+                turns += other.turns;
+                unfinished += other.unfinished;
+                for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+                    reached[depth] += other.reached[depth];
+                    died[depth] += other.died[depth];
+                    turnsOn[depth] += other.turnsOn[depth];
+                    experienceOn[depth] += other.experienceOn[depth];
+                    potionsOn[depth] += other.potionsOn[depth];
+                }
+            }
+
+            // What was gained on the level. A new level comes with a fresh Player, but going back to a
+            // level keeps the player, so it's the difference from when the level was entered.
+            void leftLevel(int depth, int turns, int experience, int potionsUsed) {
+                depth = Math.min(depth, MAX_DEPTH);
+                turnsOn[depth] += turns;
+                experienceOn[depth] += experience;
+                potionsOn[depth] += potionsUsed;
+            }
+        }
+
+        static void run(Settings settings, PrintStream out) {
+            Settings rules = new Settings();
+            rules.mapWidth = settings.mapWidth;
+            rules.mapHeight = settings.mapHeight;
+            rules.stressMonsters = settings.stressMonsters; // Endless mode has no stairs to aim for
+
+            long start = System.nanoTime();
+            Stats stats = play(rules, settings.seed, settings.simulateGames);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            out.printf("%d games, %d turns in %.2f s (%.0f turns/s on %d cores), seed %d%n",
+                       stats.games, stats.turns, seconds, stats.turns / seconds,
+                       Runtime.getRuntime().availableProcessors(), settings.seed);
+            if (stats.unfinished > 0) {
+                out.printf("%d games cut off after %d turns%n", stats.unfinished, MAX_TURNS);
+            }
+            out.println("depth   reached      died   turns     xp  potions   (averages per game reaching the depth)");
+            for (int depth = 1; depth <= MAX_DEPTH && stats.reached[depth] > 0; depth++) {
+                double reached = stats.reached[depth];
+                out.printf("%5d %9d %9d %7.1f %6.1f %8.2f%n", depth, stats.reached[depth], stats.died[depth],
+                           stats.turnsOn[depth] / reached, stats.experienceOn[depth] / reached,
+                           stats.potionsOn[depth] / reached);
+            }
+        }
+
+        /**
+         * Plays the games in parallel, one Game per thread reused from one game to the next.
+         */
+        static Stats play(Settings rules, long seed, int games) {
+            ThreadLocal<Game> threadGame = ThreadLocal.withInitial(() -> new Game(rules, 0, false, false));
+            return IntStream.range(0, games).parallel().collect(
+                Stats::new,
+                (stats, i) -> play(threadGame.get(), new Bot(ChunkedTileMap.hash(seed, i, 0, 1)),
+                                   ChunkedTileMap.hash(seed, i, 0, 0), stats),
+                Stats::add);
+        }
+
+        static void play(Game game, Policy policy, long seed, Stats stats) {
+            game.newGame(seed);
+            Game.Level level = game.level;
+            Game.Player player = game.player;
+            int depth = game.dungeonLevel, levelStart = 0;
+            int experience = player.experience, potionsUsed = player.potionsUsed;
+            stats.games++;
+            stats.reached[1]++;
+            while (!game.isOver() && game.turns < MAX_TURNS) {
+                policy.takeTurn(game);
+                if (game.level != level) {
+                    stats.leftLevel(depth, game.turns - levelStart, player.experience - experience,
+                                    player.potionsUsed - potionsUsed);
+                    level = game.level;
+                    player = game.player;
+                    depth = game.dungeonLevel;
+                    levelStart = game.turns;
+                    experience = player.experience;
+                    potionsUsed = player.potionsUsed;
+                    stats.reached[Math.min(depth, MAX_DEPTH)]++;
+                }
+            }
+            stats.leftLevel(depth, game.turns - levelStart, player.experience - experience,
+                            player.potionsUsed - potionsUsed);
+            stats.turns += game.turns;
+            if (game.isOver()) {
+                stats.died[Math.min(depth, MAX_DEPTH)]++;
+            } else {
+                stats.unfinished++;
+            }
+        }
+    }
+
+    /**
+     * A simple player: drinks when hurt, hits back whatever stands in its way and otherwise walks the
+     * shortest way to the stairs. Ignores items unless they happen to be on the way.
+     */
+    static class Bot implements Simulation.Policy {
+        private final Random rand;
+        private Game.Level pathLevel; // The level the path was worked out for
+        private List<Point> path;
+        private int step;
+
+        Bot(long seed) {
+            rand = new Random(seed);
+        }
+
+        @Override
+        public void takeTurn(Game game) {
+            Game.Player player = game.player;
+            if (player.hp < player.maxHp * 0.4 && player.potionCount > 0) {
+                game.drinkPotion();
+                return;
+            }
+            for (int dir = 0; dir < 4; dir++) {
+                int dx = Pathfinder.DX[dir], dy = Pathfinder.DY[dir];
+                if (game.monsterAt.get(player.x + dx, player.y + dy) != TileIndex.NONE) {
+                    game.move(dx, dy);
+                    return;
+                }
+            }
+
+            if (game.level != pathLevel) {
+                pathLevel = game.level;
+                path = game.stairs == null ? null
+                    : Pathfinder.findPath(game.map, player.x, player.y, game.stairs.x, game.stairs.y, Integer.MAX_VALUE);
+                step = 0;
+            }
+            if (path != null && step < path.size()) {
+                Point next = path.get(step);
+                int dx = next.x - player.x, dy = next.y - player.y;
+                if (Math.abs(dx) + Math.abs(dy) == 1) {
+                    game.move(dx, dy);
+                    if (player.x == next.x && player.y == next.y) step++;
+                    return;
+                }
+            }
+            int dir = rand.nextInt(4); // Lost, or nowhere to go, but never back up the stairs
+            if (game.upStairs != null && player.x + Pathfinder.DX[dir] == game.upStairs.x
+                    && player.y + Pathfinder.DY[dir] == game.upStairs.y) {
+                dir = (dir + 1) % 4;
+            }
+            game.move(Pathfinder.DX[dir], Pathfinder.DY[dir]);
+        }
+    }
+
+    /**
+     * Times the hot paths: generating maps, populating a level, a monster turn and a whole frame drawn
+     * offscreen. Each benchmark is warmed up first, then run for a few timed iterations, and reports the
+     * average time per operation with its spread and the bytes the operation allocates. Allocations are
+     * counted on the benchmark thread only, so the monster planning that's split across the common pool
+     * for big crowds shows less than it really allocates.
+     */
+    static class Benchmark {
+        static final int WARMUP_ITERATIONS = 3;
+        static final int ITERATIONS = 5;
+        static final long ITERATION_NANOS = 1_000_000_000L;
+
+        private static final ThreadMXBean THREADS =
+            (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private static volatile long sink; // Results go here so the JIT can't drop the work that made them
+
+        /**
+         * One operation, returning anything that depends on what it did.
+         */
+        interface Operation {
+            long run();
+        }
+
+        static void run(Settings settings, PrintStream out) throws IOException {
+            String filter = settings.benchmark;
+            out.printf("%-28s %5s %12s %10s %14s%n", "Benchmark", "Cnt", "ms/op", "Error", "alloc B/op");
+
+            Game game = new Game(settings, settings.seed, false, false);
+            for (int size : new int[] { 0, 256, 1024, 4096 }) {
+                int width = size == 0 ? 35 : size, height = size == 0 ? 22 : size;
+                long[] seed = { settings.seed };
+                measure(out, filter, "generateMap " + width + "x" + height, () -> {
+                    Random rand = new Random(seed[0]++);
+                    return game.new MapGenerator(new TileMap(width, height), rand).generateMap().get(width / 2, height / 2);
+                });
+            }
+
+            Random layout = new Random(settings.seed);
+            Game.MapGenerator generator = game.new MapGenerator(new TileMap(settings.mapWidth, settings.mapHeight), layout);
+            TileMap map = generator.generateMap();
+            List<Game.Rectangle> rooms = generator.getRooms();
+            long[] populateSeed = { settings.seed };
+            measure(out, filter, "populateDungeon", () -> {
+                Game.Level level = game.new Level(3, map);
+                game.populateDungeon(level, rooms, new Random(populateSeed[0]++));
+                return level.monsters.size + level.items.size;
+            });
+
+            for (int monsters : new int[] { 10, 100, 1_000, 10_000, 100_000 }) {
+                String name = "updateMonsters " + monsters;
+                if (!name.contains(filter)) continue;
+                // Room enough that all of them fit on the floor
+                int side = Math.max(64, Math.min(Settings.MAX_MAP_SIZE, (int) Math.sqrt(monsters * 12.0)));
+                Settings crowd = new Settings();
+                crowd.mapWidth = side;
+                crowd.mapHeight = side;
+                crowd.stressMonsters = monsters;
+                Game crowded = new Game(crowd, settings.seed, false, false);
+                crowded.newGame();
+                measure(out, filter, name, () -> {
+                    crowded.player.hp = Integer.MAX_VALUE / 2; // Nobody dies, the crowd keeps pressing in
+                    crowded.updateMonsters();
+                    return crowded.player.hp;
+                });
+            }
+
+            if ("paintComponent".contains(filter)) {
+                Path dir = Files.createTempDirectory("dungeoncrawler-benchmark");
+                Settings frame = new Settings();
+                frame.activeRendering = true; // No animation timer painting alongside
+                frame.seed = settings.seed;
+                frame.saveFile = dir.resolve("benchmark.sav");
+                frame.journalFile = dir.resolve("benchmark.journal");
+                GamePanel panel = new GamePanel(frame);
+                try {
+                    panel.setSize(panel.getPreferredSize());
+                    BufferedImage image = new BufferedImage(panel.getWidth(), panel.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    measure(out, filter, "paintComponent", () -> {
+                        Graphics2D g = image.createGraphics();
+                        try {
+                            panel.paintComponent(g);
+                        } finally {
+                            g.dispose();
+                        }
+                        return image.getRGB(panel.getWidth() / 2, panel.getHeight() / 2);
+                    });
+                } finally {
+                    panel.close();
+                    try (var files = Files.list(dir)) {
+                        for (Path file : (Iterable<Path>) files::iterator) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(dir);
+                }
+            }
+        }
+
+        private static void measure(PrintStream out, String filter, String name, Operation operation) {
+            if (!name.contains(filter)) return;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                iteration(operation);
+            }
+            double[] millis = new double[ITERATIONS];
+            long ops = 0, allocated = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long bytes = THREADS.getCurrentThreadAllocatedBytes();
+                long[] result = iteration(operation);
+                allocated += THREADS.getCurrentThreadAllocatedBytes() - bytes;
+                millis[i] = result[1] / 1e6 / result[0];
+                ops += result[0];
+            }
+            double mean = 0, variance = 0;
+            for (double m : millis) mean += m / ITERATIONS;
+            for (double m : millis) variance += (m - mean) * (m - mean) / (ITERATIONS - 1);
+            out.printf("%-28s %5d %12.4f %10.4f %,14d%n", name, ITERATIONS, mean, Math.sqrt(variance), allocated / ops);
+        }
+
+        // Runs the operation for about ITERATION_NANOS, at least once. Returns the count and the nanos taken.
+        private static long[] iteration(Operation operation) {
+            long ops = 0, result = 0, start = System.nanoTime(), elapsed;
+            do {
+                result += operation.run();
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ITERATION_NANOS);
+            sink += result;
+            return new long[] { ops, elapsed };
+        }
+    }
+
+    /**
+     * Where the time of a frame goes, for the F3 overlay. Each phase keeps its last SAMPLES timings in a
+     * ring allocated up front, so measuring costs two nanoTime calls and never allocates. The frame rate,
+     * 99th percentiles and the allocation rate of the painting thread are worked out from the rings only
+     * when the overlay is drawn. Every frame and key press is also a JFR event (DungeonCrawler.Frame,
+     * DungeonCrawler.KeyPress), so a whole session can be recorded with -XX:StartFlightRecording.
+     * Only the thread that paints uses it: the event thread, or the render thread with --active.
+     */
+    static class Profiler {
+        static final int MAP = 0, ENTITIES = 1, UI = 2, FRAME = 3, KEY_PRESS = 4;
+        static final String[] PHASES = { "drawMap", "drawEntities", "drawUI", "frame", "handleKeyPress" };
+        static final int SAMPLES = 256;
+        static final int WIDTH = 300, HEIGHT = 150; // Of the overlay
+        private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+        private static final Color BACKGROUND = new Color(0, 0, 0, 190);
+        private static final Color HEADLINE = new Color(150, 255, 150);
+        private static final Color TEXT = new Color(220, 220, 220);
+        private static final Color BAR = new Color(100, 200, 255);
+        private static final Color SLOW_BAR = new Color(255, 90, 90); // Longer than a 60 fps frame
+
+        private static final ThreadMXBean THREADS =
+            (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        @Name("DungeonCrawler.Frame")
+        @Label("Frame")
+        @Category("DungeonCrawler")
+        static class FrameEvent extends Event {
+            @Label("Draw Map") @Timespan long drawMap;
+            @Label("Draw Entities") @Timespan long drawEntities;
+            @Label("Draw UI") @Timespan long drawUI;
+            @Label("Frame") @Timespan long frame;
+            @Label("Allocated") @DataAmount long allocated;
+        }
+
+        @Name("DungeonCrawler.KeyPress")
+        @Label("Key Press")
+        @Category("DungeonCrawler")
+        static class KeyPressEvent extends Event {
+            @Label("Key Code") int keyCode;
+            @Label("Handling Time") @Timespan long handlingTime;
+        }
+
+        boolean visible;
+        private final long[][] samples = new long[PHASES.length][SAMPLES];
+        private final int[] counts = new int[PHASES.length]; // Samples ever taken, the next one goes to count % SAMPLES
+        private final long[] pending = new long[FRAME + 1]; // The frame being painted, summed over its dirty regions
+        private final long[] frameEnds = new long[SAMPLES]; // nanoTime at the end of each frame in samples[FRAME]
+        private final long[] allocatedBy = new long[SAMPLES]; // What the thread had allocated by then
+        private final long[] sorted = new long[SAMPLES];
+
+        /**
+         * Adds the time since start to a phase of the current frame.
+         * @return now, to start the next phase from
+         */
+        long lap(int phase, long start) {
+            long now = System.nanoTime();
+            pending[phase] += now - start;
+            return now;
+        }
+
+        /**
+         * Closes the current frame, if anything was painted since the last one.
+         */
+        void endFrame() {
+            if (pending[FRAME] == 0) return;
+            int slot = counts[FRAME] % SAMPLES;
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            long previous = counts[FRAME] == 0 ? allocated : allocatedBy[(slot + SAMPLES - 1) % SAMPLES];
+            frameEnds[slot] = System.nanoTime();
+            allocatedBy[slot] = allocated;
+
+            FrameEvent event = new FrameEvent();
+            if (event.isEnabled()) {
+                event.drawMap = pending[MAP];
+                event.drawEntities = pending[ENTITIES];
+                event.drawUI = pending[UI];
+                event.frame = pending[FRAME];
+                event.allocated = allocated - previous;
+                event.commit();
+            }
+            for (int phase = 0; phase <= FRAME; phase++) {
+                record(phase, pending[phase]);
+                pending[phase] = 0;
+            }
+        }
+
+        void keyPressed(int keyCode, long start) {
+            long nanos = System.nanoTime() - start;
+            KeyPressEvent event = new KeyPressEvent();
+            if (event.isEnabled()) {
+                event.keyCode = keyCode;
+                event.handlingTime = nanos;
+                event.commit();
+            }
+            record(KEY_PRESS, nanos);
+        }
+
+        private void record(int phase, long nanos) {
+            samples[phase][counts[phase] % SAMPLES] = nanos;
+            counts[phase]++;
+        }
 
-        pack();
-        setLocationRelativeTo(null);
-        setVisible(true);
+        private double average(int phase) {
+            int n = Math.min(counts[phase], SAMPLES);
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                total += samples[phase][i];
+            }
+            return n == 0 ? 0 : total / 1e6 / n;
+        }
+
+        private double p99(int phase) {
+            int n = Math.min(counts[phase], SAMPLES);
+            if (n == 0) return 0;
+            System.arraycopy(samples[phase], 0, sorted, 0, n);
+            Arrays.sort(sorted, 0, n);
+            return sorted[(int) Math.ceil(n * 0.99) - 1] / 1e6;
+        }
+
+        void draw(Graphics2D g, int x, int y) {
+            int frames = Math.min(counts[FRAME], SAMPLES);
+            int newest = (counts[FRAME] - 1 + SAMPLES) % SAMPLES;
+            int oldest = counts[FRAME] > SAMPLES ? counts[FRAME] % SAMPLES : 0;
+            long now = System.nanoTime();
+            int lastSecond = 0;
+            for (int i = 0; i < frames; i++) {
+                if (now - frameEnds[i] < 1_000_000_000L) lastSecond++;
+            }
+            long span = frameEnds[newest] - frameEnds[oldest];
+            double allocationRate = span > 0 ? (allocatedBy[newest] - allocatedBy[oldest]) * 1e9 / span / (1 << 20) : 0;
+
+            g.setColor(BACKGROUND);
+            g.fillRect(x, y, WIDTH, HEIGHT);
+            g.setFont(FONT);
+            g.setColor(HEADLINE);
+            g.drawString(String.format("%d fps   p99 %.1f ms   %.1f MB/s", lastSecond, p99(FRAME), allocationRate),
+                         x + 8, y + 18);
+            g.setColor(TEXT);
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                g.drawString(String.format("%-15s %6.2f  p99 %6.2f ms", PHASES[phase], average(phase), p99(phase)),
+                             x + 8, y + 38 + phase * 16);
+            }
+
+            // The last frames as bars, a full bar is 33 ms (30 fps)
+            int bars = Math.min(frames, WIDTH - 16);
+            int base = y + HEIGHT - 6;
+            for (int i = 0; i < bars; i++) {
+                long nanos = samples[FRAME][(counts[FRAME] - bars + i) % SAMPLES];
+                int height = (int) Math.min(30, nanos * 30 / 33_000_000L);
+                g.setColor(nanos > 16_700_000L ? SLOW_BAR : BAR);
+                g.drawLine(x + 8 + i, base, x + 8 + i, base - height);
+            }
+        }
     }
 
-    public static void main(String[] args) {
-        try {
-            // Corrected method name to get the system's look and feel class name as a string
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Active rendering: a dedicated thread owns the game state, runs a fixed-timestep update loop and draws
+     * each frame straight into a BufferStrategy. Key events from the EDT are only queued here and handled
+     * at the start of the next frame, so game logic never runs on two threads.
+     */
+    class GameCanvas extends Canvas implements Runnable {
+        private static final long UPDATE_NANOS = 1_000_000_000L / 60; // Fixed simulation step
+
+        private final GamePanel game;
+        private final long frameNanos;
+        private volatile boolean running;
+        private Thread renderThread;
+
+        GameCanvas(GamePanel game, int targetFps) {
+            this.game = game;
+            this.frameNanos = 1_000_000_000L / Math.max(1, targetFps);
+            setPreferredSize(game.getPreferredSize());
+            setBackground(game.getBackground());
+            setIgnoreRepaint(true);
+            setFocusable(true);
+
+            addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyPressed(KeyEvent e) {
+                    game.keyPressed(e);
+                }
+
+                @Override
+                public void keyReleased(KeyEvent e) {
+                    game.keyReleased(e);
+                }
+            });
+            addFocusListener(new FocusAdapter() {
+                @Override
+                public void focusLost(FocusEvent e) {
+                    game.focusLost();
+                }
+            });
+        }
+
+        void start() {
+            createBufferStrategy(2);
+            requestFocusInWindow();
+            running = true;
+            renderThread = new Thread(this, "DungeonCrawler-render");
+            renderThread.setDaemon(true);
+            renderThread.start();
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void removeNotify() {
+            stop();
+            super.removeNotify();
+        }
+
+        @Override
+        public void run() {
+            BufferStrategy strategy = getBufferStrategy();
+            long previous = System.nanoTime();
+            long nextFrame = previous;
+            long lag = 0;
+
+            while (running) {
+                long now = System.nanoTime();
+                lag += now - previous;
+                previous = now;
+
+                // Input first, so a key press shows up in the very next frame
+                game.processInput();
+
+                // Fixed-timestep simulation, independent of how fast frames are drawn
+                int updates = 0;
+                while (lag >= UPDATE_NANOS && updates++ < 5) {
+                    game.update(UPDATE_NANOS);
+                    lag -= UPDATE_NANOS;
+                }
+                if (lag >= UPDATE_NANOS) {
+                    lag = 0; // Way behind (debugger, sleep...), don't try to catch up
+                }
+
+                render(strategy);
+
+                // Sleep until the next frame is due; if we fell more than a frame behind, start over from now
+                nextFrame += frameNanos;
+                long sleep = nextFrame - System.nanoTime();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(sleep);
+                } else if (-sleep > frameNanos) {
+                    nextFrame = System.nanoTime();
+                }
+            }
+        }
+
+        private void render(BufferStrategy strategy) {
+            do {
+                do {
+                    Graphics2D g2d = (Graphics2D) strategy.getDrawGraphics();
+                    try {
+                        g2d.setColor(getBackground());
+                        g2d.fillRect(0, 0, getWidth(), getHeight());
+                        game.render(g2d);
+                    } finally {
+                        g2d.dispose();
+                    }
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+
+            Toolkit.getDefaultToolkit().sync(); // Flush the pipeline so the frame is on screen now, not batched
+            game.profiler.endFrame();
+        }
+    }
+
+    /**
+     * Symbols rasterized once into one shared image, so entities are drawn as sub-image blits instead of
+     * text. Each symbol is drawn with the first font in FONTS that has a glyph for it, looked up once when
+     * the symbol is first used. On a machine with none of them, the symbol's plain stand-in is drawn
+     * instead, so a missing emoji font never shows as empty boxes.
+     */
+    static class GlyphAtlas {
+        static final String[] FONTS = { "Segoe UI Emoji", "Segoe UI Symbol", "Apple Color Emoji", "Noto Color Emoji",
+                                        "Noto Emoji", "Symbola", "DejaVu Sans", Font.DIALOG };
+        static final int COLUMNS = 8;
+
+        private final int style, points;
+        private final int cell; // Cells are square, twice the point size
+        private final Map<String, Integer> cells = new HashMap<>(); // Symbol and color to cell index
+        private BufferedImage image;
+        private int used;
+        private Set<String> installed; // Font families, asked for once
+
+        GlyphAtlas(int style, int points) {
+            this.style = style;
+            this.points = points;
+            this.cell = points * 2;
+        }
+
+        /**
+         * The cell holding the symbol in the color, with a one pixel black shadow. Drawn the first time.
+         */
+        int cell(String symbol, String fallback, Color color) {
+            return cells.computeIfAbsent(symbol + '\0' + color.getRGB(), key -> rasterize(symbol, fallback, color));
+        }
+
+        /**
+         * Blits a cell centered on (x, y).
+         */
+        void draw(Graphics2D g, int cell, int x, int y) {
+            int sx = cell % COLUMNS * this.cell, sy = cell / COLUMNS * this.cell;
+            int dx = x - this.cell / 2, dy = y - this.cell / 2;
+            g.drawImage(image, dx, dy, dx + this.cell, dy + this.cell, sx, sy, sx + this.cell, sy + this.cell, null);
+        }
+
+        private int rasterize(String symbol, String fallback, Color color) {
+            Font font = fontFor(symbol);
+            String text = symbol;
+            if (font == null) {
+                font = new Font(Font.DIALOG, style, points);
+                text = fallback;
+            }
+
+            int index = used++;
+            int rows = (index / COLUMNS) + 1;
+            if (image == null || image.getHeight() < rows * cell) {
+                // Double the rows, keeping what's drawn already
+                BufferedImage grown = new BufferedImage(COLUMNS * cell, Math.max(rows, image == null ? 2 : image.getHeight() / cell * 2) * cell,
+                                                        BufferedImage.TYPE_INT_ARGB);
+                if (image != null) {
+                    Graphics2D g = grown.createGraphics();
+                    g.drawImage(image, 0, 0, null);
+                    g.dispose();
+                }
+                image = grown;
+            }
+
+            Graphics2D g2d = image.createGraphics();
+            try {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                int x = index % COLUMNS * cell, y = index / COLUMNS * cell;
+                g2d.clipRect(x, y, cell, cell);
+                g2d.setFont(font);
+                FontMetrics fm = g2d.getFontMetrics();
+                int textX = x + cell / 2 - fm.stringWidth(text) / 2;
+                int textY = y + cell / 2 + fm.getAscent() / 2 - 2;
+                g2d.setColor(Color.BLACK);
+                g2d.drawString(text, textX + 1, textY + 1);
+                g2d.setColor(color);
+                g2d.drawString(text, textX, textY);
+            } finally {
+                g2d.dispose();
+            }
+            return index;
+        }
+
+        private Font fontFor(String symbol) {
+            if (installed == null) {
+                installed = Set.of(GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames());
+            }
+            for (String name : FONTS) {
+                if (!installed.contains(name) && !name.equals(Font.DIALOG)) continue;
+                Font font = new Font(name, style, points);
+                if (font.canDisplayUpTo(symbol) == -1) return font;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Key codes waiting to be played, shared between the event thread that adds them and whichever
+     * thread plays them. The auto-repeat of a held key is folded into that key while it's still waiting,
+     * a key past the capacity is dropped.
+     */
+    static class InputQueue {
+        static final int EMPTY = -1;
+
+        private final int[] keys;
+        private int head, size;
+
+        InputQueue(int capacity) {
+            keys = new int[capacity];
+        }
+
+        /**
+         * @param repeat whether it's the auto-repeat of a held key, which isn't queued again while that key
+         *               is waiting, so holding a key never gets ahead of the game by more than one turn
+         * @return false if the key was dropped
+         */
+        synchronized boolean offer(int keyCode, boolean repeat) {
+            if (repeat) {
+                for (int i = 0; i < size; i++) {
+                    if (keys[(head + i) % keys.length] == keyCode) return true; // That one plays for both
+                }
+            }
+            if (size == keys.length) return false;
+            keys[(head + size) % keys.length] = keyCode;
+            size++;
+            return true;
+        }
+
+        synchronized int poll() {
+            if (size == 0) return EMPTY;
+            int keyCode = keys[head];
+            head = (head + 1) % keys.length;
+            size--;
+            return keyCode;
         }
-        SwingUtilities.invokeLater(DungeonCrawler::new);
     }
 
-    class GamePanel extends JPanel {
+    static class GamePanel extends JPanel {
         // Game Constants
         private static final int TILE_SIZE = 32;
-        private static final int MAP_WIDTH = 35;
-        private static final int MAP_HEIGHT = 22;
-        private static final int PANEL_WIDTH = MAP_WIDTH * TILE_SIZE;
-        private static final int PANEL_HEIGHT = MAP_HEIGHT * TILE_SIZE + 120; // Extra space for UI
+        private static final int VIEW_WIDTH = 35;  // Tiles visible on screen
+        private static final int VIEW_HEIGHT = 22;
+        private static final int PANEL_WIDTH = VIEW_WIDTH * TILE_SIZE;
+        private static final int VIEW_PIXEL_HEIGHT = VIEW_HEIGHT * TILE_SIZE;
+        private static final int PANEL_HEIGHT = VIEW_PIXEL_HEIGHT + 120; // Extra space for UI
+        private final int mapWidth;
+        private final int mapHeight;
+        private final boolean endless;
 
         // Game State
-        private Player player;
-        private List<Monster> monsters;
-        private List<Item> items;
-        private Tile[][] map;
-        private Point stairs;
-        private int dungeonLevel = 1;
-        private String message = "Welcome, brave adventurer! Find the glowing portal to descend deeper.";
+        private final Game game;
+        private int camX, camY; // Top left tile of the view
         private Timer animationTimer;
         private long gameTime = 0;
+        private long gameNanos = 0;
+        private final boolean activeRendering;
+        final Profiler profiler = new Profiler(); // F3
+
+        // Keys wait in the queue until processInput gets to them, a few each frame
+        static final int RUN = 1 << 16; // Added to the key code of a direction held with Shift
+        static final int REPLAY_STEP = 1 << 17; // Queued by the replay timer, so whoever owns the game plays it
+        private static final int RUN_LIMIT = 200; // Turns one run may take
+        private static final int MAX_KEYS_PER_FRAME = 4;
+        private final InputQueue input = new InputQueue(16);
+        private boolean inputScheduled;
+        private final BitSet heldKeys = new BitSet(); // Pressed and not yet released
+
+        // Saves are written on their own thread, the event thread only copies the current level
+        private final Path saveFile;
+        private final ExecutorService saver = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DungeonCrawler-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicReference<SaveFile> nextSave = new AtomicReference<>(); // Waiting to be written
+
+        // Every command is journaled so the session can be played again (--replay); null once that fails
+        private Journal journal;
+        // A journal being played back instead, its own keys replace the game's
+        private final Replay replay;
+        private Timer replayTimer;
+
+        // Dirty regions, painted with paintImmediately so far apart regions don't get unioned into one big repaint
+        private static final int MAX_DIRTY = 64;
+        private final Rectangle[] dirty = new Rectangle[MAX_DIRTY];
+        private int dirtyCount = 0;
+        private boolean allDirty = true;
+        private final Rectangle clipBounds = new Rectangle();
+        private int lastMonsterGlow = -1;
+        private int lastPlayerGlow = -1;
+        private int turnStartX, turnStartY;
+
+        // The HUD, drawn again only when something on it changes (isHudStale) and blitted otherwise,
+        // and what it showed when it was drawn
+        private BufferedImage hudLayer;
+        private int hudHp, hudMaxHp, hudAttack, hudPotions, hudExperience, hudLevel, hudReplayPosition;
+        private boolean hudReplayRunning;
+        private String hudMessage;
 
         // Visual enhancements
-        private BufferedImage shadowLayer;
+        private BufferedImage tileLayer; // The visible tiles plus wall shadows, redrawn only when the camera moves
+        // Tile layers of levels left behind, for levels being prepared to draw into
+        private final Queue<BufferedImage> spareTileLayers = new ConcurrentLinkedQueue<>();
+        private int tileLayerCamX = -1, tileLayerCamY = -1;
+        private BufferedImage lightMap; // One pixel per tile of the view, how dark it is
+        private int lightVersion = 0, tileLayerLight = -1; // The tile layer has the light baked in
+        private boolean lightStale = true; // Walls changed since the field of view was computed
+        private final BufferedImage[][] tileSprites; // [tile][variant], every tile looks like one of these six
         private Random visualRandom = new Random();
         
         // Enhanced color scheme with gradients
@@ -84,6 +3843,18 @@ public class DungeonCrawler extends JFrame {
         private final Color ITEM_GLOW = new Color(255, 215, 0, 120);
         private final Color STAIRS_COLOR = new Color(180, 100, 255);
         private final Color STAIRS_GLOW = new Color(180, 100, 255, 150);
+        private final Color CRYSTAL_GLOW = new Color(180, 100, 255, 100);
+        private final Color CORPSE_GLOW = new Color(100, 100, 100, 80);
+
+        // Pre-composited glow + symbol sprites, one per glow size
+        private final GlyphAtlas glyphs = new GlyphAtlas(Font.BOLD, 24);
+        private final GlowSprite STAIRS_SPRITE = new GlowSprite("◉", "O", STAIRS_COLOR, STAIRS_GLOW);
+        private final GlowSprite UP_STAIRS_SPRITE = new GlowSprite("▲", "<", STAIRS_COLOR, STAIRS_GLOW);
+        private final GlowSprite HEALTH_SPRITE = new GlowSprite("♥", "+", ITEM_COLOR, ITEM_GLOW);
+        private final GlowSprite CRYSTAL_SPRITE = new GlowSprite("◆", "*", ITEM_COLOR, CRYSTAL_GLOW);
+        private final GlowSprite MONSTER_SPRITE = new GlowSprite("👹", "M", MONSTER_COLOR, MONSTER_GLOW);
+        private final GlowSprite PLAYER_SPRITE = new GlowSprite("🛡", "@", PLAYER_COLOR, PLAYER_GLOW);
+        private final GlowSprite CORPSE_SPRITE = new GlowSprite("💀", "%", Color.GRAY, CORPSE_GLOW);
         
         // UI colors
         private final Color UI_BG = new Color(20, 20, 25, 200);
@@ -93,22 +3864,47 @@ public class DungeonCrawler extends JFrame {
         private final Color HEALTH_LOW = new Color(255, 80, 80);
 
         // Fonts
-        private Font gameFont;
         private Font uiFont;
         private Font titleFont;
 
-        public GamePanel() {
+        public GamePanel(Settings settings) {
+            this.activeRendering = settings.activeRendering;
+            this.saveFile = settings.saveFile;
+            if (settings.replayFile != null) {
+                Journal.Recording recording;
+                try {
+                    recording = Journal.Recording.read(settings.replayFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                this.mapWidth = recording.settings.mapWidth;
+                this.mapHeight = recording.settings.mapHeight;
+                this.endless = false;
+                this.game = new Game(recording.settings, settings.seed, true, true);
+                this.replay = new Replay(game, recording);
+            } else {
+                this.mapWidth = settings.mapWidth;
+                this.mapHeight = settings.mapHeight;
+                this.endless = settings.endless;
+                this.game = new Game(settings, settings.seed, true, true);
+                this.replay = null;
+                if (!endless) {
+                    try {
+                        journal = new Journal(settings.journalFile, settings);
+                    } catch (IOException e) {
+                        e.printStackTrace(); // Play on without one
+                    }
+                }
+            }
             setPreferredSize(new Dimension(PANEL_WIDTH, PANEL_HEIGHT));
             setBackground(new Color(15, 15, 20));
             setFocusable(true);
             
             // Initialize fonts
             try {
-                gameFont = new Font("Segoe UI Symbol", Font.BOLD, 24);
                 uiFont = new Font("Segoe UI", Font.PLAIN, 14);
                 titleFont = new Font("Segoe UI", Font.BOLD, 16);
             } catch (Exception e) {
-                gameFont = new Font("Monospaced", Font.BOLD, 24);
                 uiFont = new Font("SansSerif", Font.PLAIN, 14);
                 titleFont = new Font("SansSerif", Font.BOLD, 16);
             }
@@ -116,353 +3912,894 @@ public class DungeonCrawler extends JFrame {
             addKeyListener(new KeyAdapter() {
                 @Override
                 public void keyPressed(KeyEvent e) {
-                    handleKeyPress(e.getKeyCode());
+                    GamePanel.this.keyPressed(e);
+                }
+
+                @Override
+                public void keyReleased(KeyEvent e) {
+                    GamePanel.this.keyReleased(e);
+                }
+            });
+            addFocusListener(new FocusAdapter() {
+                @Override
+                public void focusLost(FocusEvent e) {
+                    GamePanel.this.focusLost();
                 }
             });
 
-            // Animation timer for smooth effects
-            animationTimer = new Timer(50, e -> {
-                gameTime += 50;
-                repaint();
+            tileSprites = new BufferedImage[][] {
+                { createTileSprite(TileMap.WALL, 0), createTileSprite(TileMap.WALL, 1), createTileSprite(TileMap.WALL, 2) },
+                { createTileSprite(TileMap.FLOOR, 0), createTileSprite(TileMap.FLOOR, 1), createTileSprite(TileMap.FLOOR, 2) }
+            };
+            game.setListener(new Game.Listener() {
+                @Override
+                public void levelEntered() {
+                    showLevel();
+                }
+
+                @Override
+                public void levelPrepared(Game.Level level) {
+                    prerenderLevel(level);
+                }
+
+                @Override
+                public void chunkLoaded(ChunkedTileMap.Chunk chunk) {
+                    // Redraw if walls just appeared in view
+                    int size = ChunkedTileMap.CHUNK_SIZE;
+                    if (chunk.originX() < camX + VIEW_WIDTH && chunk.originX() + size > camX
+                            && chunk.originY() < camY + VIEW_HEIGHT && chunk.originY() + size > camY) {
+                        lightStale = true;
+                        markAllDirty();
+                    }
+                }
             });
-            animationTimer.start();
+            if (replay != null && replay.length() > 0) {
+                replay.seek(Math.max(1, settings.seekTo)); // The first input starts the game
+                replayTimer = new Timer(100, e -> queueKey(REPLAY_STEP, true)); // Never more than one step behind
+                replayTimer.start();
+            } else {
+                startNewGame();
+            }
 
-            newGame();
+            // Animation timer for smooth effects (the render thread drives time itself when rendering actively)
+            if (!activeRendering) {
+                animationTimer = new Timer(50, e -> {
+                    processInput(); // Whatever was left over from the last batch
+                    update(50_000_000L);
+                    markAnimatedDirty();
+                    flushDirty();
+                });
+                animationTimer.start();
+            }
         }
 
-        private void newGame() {
-            dungeonLevel = 1;
-            message = "Welcome, brave adventurer! Find the glowing portal to descend deeper.";
-            generateLevel();
-            createShadowLayer();
+        /**
+         * The game moved to another level. One prepared in the background comes with its tiles already drawn,
+         * so showing it is a swap of images and no frame is lost going downstairs.
+         */
+        private void showLevel() {
+            Game.Level level = game.level;
+            if (level.tileLayer != null) {
+                if (tileLayer != null) spareTileLayers.offer(tileLayer);
+                tileLayer = level.tileLayer;
+                level.tileLayer = null;
+                camX = level.camX;
+                camY = level.camY;
+                lightStale = false;
+                lightVersion++;
+                tileLayerCamX = camX;
+                tileLayerCamY = camY;
+                tileLayerLight = lightVersion;
+            } else {
+                camX = Integer.MIN_VALUE; // Force the camera onto the new player position
+                updateCamera();
+                updateLight();
+            }
+            markAllDirty();
+            if (journal != null) {
+                try {
+                    journal.level(game.dungeonLevel, game.levelSeed(game.dungeonLevel));
+                } catch (IOException e) {
+                    stopJournal(e);
+                }
+            }
+            if (!endless && replay == null) {
+                saveGame(); // Quick-save on every new level
+            }
         }
 
-        private void nextLevel() {
-            dungeonLevel++;
-            message = "You descend deeper into the mystical depths... (Level " + dungeonLevel + ")";
-            generateLevel();
-            createShadowLayer();
+        private void startNewGame() {
+            long seed = game.nextSeed();
+            if (journal != null) {
+                try {
+                    journal.newGame(seed);
+                } catch (IOException e) {
+                    stopJournal(e);
+                }
+            }
+            game.newGame(seed);
         }
 
-        private void createShadowLayer() {
-            shadowLayer = new BufferedImage(PANEL_WIDTH, MAP_HEIGHT * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = shadowLayer.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            
-            for (int x = 0; x < MAP_WIDTH; x++) {
-                for (int y = 0; y < MAP_HEIGHT; y++) {
-                    if (map[x][y] == Tile.WALL) {
-                        // Add soft shadows around walls
-                        g.setColor(SHADOW_COLOR);
-                        g.fillRoundRect(x * TILE_SIZE + 2, y * TILE_SIZE + 2, 
-                                      TILE_SIZE - 4, TILE_SIZE - 4, 8, 8);
-                    }
+        // Key events from this panel, or the GameCanvas drawing it, all on the event thread
+        void keyPressed(KeyEvent e) {
+            int keyCode = e.getKeyCode();
+            // Auto-repeat comes as more presses without a release in between
+            boolean repeat = heldKeys.get(keyCode);
+            heldKeys.set(keyCode);
+            queueKey(keyCode | (e.isShiftDown() ? RUN : 0), repeat);
+        }
+
+        void keyReleased(KeyEvent e) {
+            heldKeys.clear(e.getKeyCode());
+        }
+
+        // Releases that happen in another window never arrive
+        void focusLost() {
+            heldKeys.clear();
+        }
+
+        /**
+         * Queues a key for processInput. A repeat isn't queued again while the same key is still waiting,
+         * so the auto-repeat of a held key can't pile up turns that go on playing after it's let go, while
+         * two presses of a key are always two turns.
+         * Without active rendering the keys are handled as soon as the event thread gets to it, any past
+         * MAX_KEYS_PER_FRAME wait for the next animation tick.
+         */
+        void queueKey(int keyCode, boolean repeat) {
+            if (input.offer(keyCode, repeat) && !activeRendering && !inputScheduled) {
+                inputScheduled = true;
+                SwingUtilities.invokeLater(this::processInput);
+            }
+        }
+
+        /**
+         * Plays a few of the queued keys and then draws the result, once for all of them.
+         */
+        void processInput() {
+            inputScheduled = false;
+            for (int i = 0; i < MAX_KEYS_PER_FRAME; i++) {
+                int keyCode = input.poll();
+                if (keyCode == InputQueue.EMPTY) break;
+                handleKeyPress(keyCode);
+            }
+            flushDirty();
+        }
+
+        private void move(byte command, boolean run) {
+            if (run) {
+                run(command);
+            } else {
+                play(command);
+            }
+        }
+
+        private void play(byte command) {
+            markTurnStart();
+            record(command);
+            game.play(command);
+            markTurnEnd();
+        }
+
+        /**
+         * Shift and a direction: keeps walking until something is worth stopping for, that is a wall or a
+         * monster in the way, damage taken, something picked up, a new level or another monster coming
+         * into view. All of it is drawn as one frame.
+         */
+        private void run(byte command) {
+            markTurnStart();
+            Game.Level level = game.level;
+            Game.Player player = game.player;
+            int hp = player.hp, potions = player.potionCount, attack = player.attackPower;
+            int seen = visibleMonsters();
+            for (int turn = 0; turn < RUN_LIMIT && !game.isOver(); turn++) {
+                int x = player.x, y = player.y;
+                record(command);
+                game.play(command);
+                // Going back to a level keeps the same Player, so a new level shows in the level only
+                if (game.level != level || (player.x == x && player.y == y) || player.hp < hp
+                        || player.potionCount != potions || player.attackPower != attack) {
+                    break;
                 }
+                game.level.fov.compute(game.map, player.x, player.y);
+                int visible = visibleMonsters();
+                if (visible > seen) break;
+                seen = visible;
             }
-            g.dispose();
+            lightStale = true;
+            markTurnEnd();
+            markAllDirty(); // Light and fog changed all along the way
+        }
+
+        // Monsters in the field of view, found through the index so a crowded level costs no more
+        private int visibleMonsters() {
+            FieldOfView fov = game.level.fov;
+            int count = 0, radius = FieldOfView.RADIUS;
+            for (int y = game.player.y - radius; y <= game.player.y + radius; y++) {
+                for (int x = game.player.x - radius; x <= game.player.x + radius; x++) {
+                    if (fov.isVisible(x, y) && game.monsterAt.get(x, y) != TileIndex.NONE) count++;
+                }
+            }
+            return count;
         }
 
-        private void generateLevel() {
-            MapGenerator generator = new MapGenerator(MAP_WIDTH, MAP_HEIGHT);
-            map = generator.generateMap();
-            monsters = new ArrayList<>();
-            items = new ArrayList<>();
+        // A player's command goes in the journal before it's played. Commands after death change nothing and aren't kept.
+        private void record(byte command) {
+            if (journal != null && !game.isOver()) {
+                try {
+                    journal.command(command);
+                } catch (IOException e) {
+                    stopJournal(e);
+                }
+            }
+        }
 
-            Point startPos = generator.getRandomRoomCenter();
-            player = new Player(startPos.x, startPos.y);
+        /**
+         * Finishes the journal and any save still being written.
+         */
+        void close() {
+            if (animationTimer != null) animationTimer.stop();
+            if (replayTimer != null) replayTimer.stop();
+            saver.shutdown();
+            try {
+                saver.awaitTermination(10, TimeUnit.SECONDS);
+                if (journal != null) journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journal = null;
+        }
 
-            stairs = generator.getRandomRoomCenter();
-            while (stairs.equals(startPos)) {
-                stairs = generator.getRandomRoomCenter();
+        private void stopJournal(IOException e) {
+            e.printStackTrace();
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+                // Already failing
             }
+            journal = null;
+        }
 
-            populateDungeon(generator.getRooms());
+        /**
+         * Captures the game here and writes it on the saver. Going down stairs fast can capture faster than
+         * big saves get written, so only the latest capture waiting for the saver is written.
+         */
+        private void saveGame() {
+            if (nextSave.getAndSet(SaveFile.capture(game)) != null) return; // Already on its way
+            saver.execute(() -> {
+                try {
+                    nextSave.getAndSet(null).write(saveFile);
+                } catch (IOException | IllegalStateException e) {
+                    e.printStackTrace();
+                }
+            });
         }
 
-        private void populateDungeon(List<Rectangle> rooms) {
-            Random rand = new Random();
-            for (Rectangle room : rooms) {
-                if (rand.nextInt(100) < 40 + dungeonLevel * 8) {
-                    Point pos = getRandomPointInRoom(room);
-                    if (isPositionFree(pos.x, pos.y)) {
-                        monsters.add(new Monster(pos.x, pos.y, 8 + dungeonLevel * 4, 3 + dungeonLevel));
+        private void loadGame() {
+            try {
+                saver.submit(() -> { }).get(); // A save still being written goes first
+                SaveFile save = SaveFile.read(saveFile);
+                save.checkSize(game.mapWidth, game.mapHeight);
+                if (journal != null) {
+                    try {
+                        journal.load(save);
+                    } catch (IOException e) {
+                        stopJournal(e);
                     }
                 }
-                if (rand.nextInt(100) < 15) {
-                    Point pos = getRandomPointInRoom(room);
-                    if (isPositionFree(pos.x, pos.y)) {
-                        items.add(new Item(pos.x, pos.y, "Health Elixir", '♥'));
+                save.restore(game);
+            } catch (NoSuchFileException e) {
+                game.message = "There is no saved game yet.";
+            } catch (IOException | ExecutionException e) {
+                e.printStackTrace();
+                game.message = "The saved game could not be read: " + e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Works out what the player sees at the start of a level and draws the tiles around it. Called on the
+         * level loader thread, so only the level, the sprites and an image nobody else uses are touched.
+         */
+        private void prerenderLevel(Game.Level level) {
+            BufferedImage layer = spareTileLayers.poll();
+            if (layer == null) {
+                layer = createCompatibleImage(PANEL_WIDTH, VIEW_PIXEL_HEIGHT, Transparency.OPAQUE);
+            }
+            level.fov.compute(level.map, level.start.x, level.start.y);
+            level.camX = cameraX(level.start.x);
+            level.camY = cameraY(level.start.y);
+            renderTileLayer(layer, level.map, level.fov, level.camX, level.camY,
+                            new BufferedImage(VIEW_WIDTH + 2, VIEW_HEIGHT + 2, BufferedImage.TYPE_INT_ARGB));
+            level.tileLayer = layer;
+        }
+
+        /**
+         * Renders the visible part of the map (tiles and wall shadows) into one image so each frame is a single
+         * blit. Only the tiles in the view are touched, so this costs the same on any map size.
+         */
+        private void createTileLayer() {
+            if (tileLayer == null) {
+                tileLayer = createCompatibleImage(PANEL_WIDTH, VIEW_PIXEL_HEIGHT, Transparency.OPAQUE);
+            }
+            if (lightMap == null) {
+                lightMap = new BufferedImage(VIEW_WIDTH + 2, VIEW_HEIGHT + 2, BufferedImage.TYPE_INT_ARGB);
+            }
+            renderTileLayer(tileLayer, game.map, game.level.fov, camX, camY, lightMap);
+            tileLayerCamX = camX;
+            tileLayerCamY = camY;
+            tileLayerLight = lightVersion;
+        }
+
+        // Only reads its arguments and the sprites, so levels being prepared can use it off the event thread
+        private void renderTileLayer(BufferedImage layer, TileMap map, FieldOfView fov, int camX, int camY,
+                                     BufferedImage lightMap) {
+            Graphics2D g = layer.createGraphics();
+            g.setColor(getBackground());
+            g.fillRect(0, 0, layer.getWidth(), layer.getHeight());
+
+            int lastX = endless ? camX + VIEW_WIDTH : Math.min(mapWidth, camX + VIEW_WIDTH);
+            int lastY = endless ? camY + VIEW_HEIGHT : Math.min(mapHeight, camY + VIEW_HEIGHT);
+            for (int y = camY; y < lastY; y++) {
+                for (int x = camX; x < lastX; x++) {
+                    drawTile(g, map, x, y, camX, camY);
+                }
+            }
+            drawLightMap(g, map, fov, camX, camY, lightMap);
+            g.dispose();
+        }
+
+        /**
+         * Darkens the tile layer by how well each tile is lit: bright around the player, dim where it has
+         * been before and black where it has never been. The darkness goes into a tiny image with a pixel per
+         * tile, and drawing that scaled up with bilinear filtering gives smooth light for the price of one
+         * image blit, once per move instead of a gradient fill every frame.
+         */
+        private void drawLightMap(Graphics2D g, TileMap map, FieldOfView fov, int camX, int camY,
+                                  BufferedImage lightMap) {
+            // One tile of margin so the edges of the view interpolate towards the right values
+            for (int ty = 0; ty < VIEW_HEIGHT + 2; ty++) {
+                for (int tx = 0; tx < VIEW_WIDTH + 2; tx++) {
+                    int x = camX + tx - 1, y = camY + ty - 1;
+                    int light = fov.light(x, y);
+                    int darkness;
+                    if (light > 0) {
+                        darkness = 150 - light * 150 / 255;
+                    } else if (map.isExplored(x, y)) {
+                        darkness = 170;
+                    } else {
+                        darkness = 255;
                     }
+                    lightMap.setRGB(tx, ty, darkness << 24);
                 }
-                if (rand.nextInt(100) < 5) {
-                    Point pos = getRandomPointInRoom(room);
-                    if (isPositionFree(pos.x, pos.y)) {
-                        items.add(new Item(pos.x, pos.y, "Power Crystal", '◆'));
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(lightMap, -TILE_SIZE, -TILE_SIZE,
+                        (VIEW_WIDTH + 2) * TILE_SIZE, (VIEW_HEIGHT + 2) * TILE_SIZE, null);
+        }
+
+        /**
+         * Recomputes what the player sees. Only needed when the player moved or walls changed; the result is
+         * baked into the tile layer on its next rebuild.
+         */
+        private void updateLight() {
+            game.level.fov.compute(game.map, game.player.x, game.player.y);
+            lightStale = false;
+            lightVersion++;
+        }
+
+        /**
+         * Keeps the player in the middle of the view, without scrolling past the edges of the map.
+         */
+        private void updateCamera() {
+            int newCamX = cameraX(game.player.x);
+            int newCamY = cameraY(game.player.y);
+            if (newCamX != camX || newCamY != camY) {
+                camX = newCamX;
+                camY = newCamY;
+                markAllDirty();
+            }
+        }
+
+        private int cameraX(int x) {
+            int cam = x - VIEW_WIDTH / 2;
+            return endless ? cam : Math.max(0, Math.min(cam, mapWidth - VIEW_WIDTH));
+        }
+
+        private int cameraY(int y) {
+            int cam = y - VIEW_HEIGHT / 2;
+            return endless ? cam : Math.max(0, Math.min(cam, mapHeight - VIEW_HEIGHT));
+        }
+
+        private BufferedImage createCompatibleImage(int width, int height, int transparency) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            if (gc == null && !GraphicsEnvironment.isHeadless()) {
+                gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+            }
+            if (gc != null) {
+                return gc.createCompatibleImage(width, height, transparency);
+            }
+            return new BufferedImage(width, height, transparency == Transparency.OPAQUE
+                    ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+
+        private int screenX(int x) {
+            return (x - camX) * TILE_SIZE;
+        }
+
+        private int screenY(int y) {
+            return (y - camY) * TILE_SIZE;
+        }
+
+        // Also true one tile past the edges, since glows reach into the neighbouring tiles
+        // (except below the view, that's where the HUD is)
+        private boolean isInView(int x, int y) {
+            return x >= camX - 1 && x <= camX + VIEW_WIDTH && y >= camY - 1 && y < camY + VIEW_HEIGHT;
+        }
+
+        private void markAllDirty() {
+            allDirty = true;
+            dirtyCount = 0;
+        }
+
+        private void markDirty(int x, int y, int width, int height) {
+            if (allDirty) return;
+
+            for (int i = 0; i < dirtyCount; i++) {
+                Rectangle r = dirty[i];
+                if (r.x <= x + width && x <= r.x + r.width && r.y <= y + height && y <= r.y + r.height) {
+                    r.add(x, y);
+                    r.add(x + width, y + height);
+                    return;
+                }
+            }
+            if (dirtyCount == MAX_DIRTY) {
+                dirty[dirtyCount - 1].add(x, y);
+                dirty[dirtyCount - 1].add(x + width, y + height);
+                return;
+            }
+            if (dirty[dirtyCount] == null) {
+                dirty[dirtyCount] = new Rectangle();
+            }
+            dirty[dirtyCount++].setBounds(x, y, width, height);
+        }
+
+        // The whole sprite of an entity, including the glow that spills into the neighbouring tiles
+        private void markTileDirty(int x, int y) {
+            if (!isInView(x, y)) return;
+            markDirty(screenX(x) + TILE_SIZE / 2 - GlowSprite.SIZE / 2, screenY(y) + TILE_SIZE / 2 - GlowSprite.SIZE / 2,
+                      GlowSprite.SIZE, GlowSprite.SIZE);
+        }
+
+        private void markEntitiesDirty() {
+            if (game.stairs != null) markTileDirty(game.stairs.x, game.stairs.y);
+            if (game.upStairs != null) markTileDirty(game.upStairs.x, game.upStairs.y);
+            markTileDirty(game.player.x, game.player.y);
+            for (int i = 0; i < game.monsters.size; i++) {
+                markTileDirty(game.monsters.x[i], game.monsters.y[i]);
+            }
+            for (int i = 0; i < game.items.size; i++) {
+                markTileDirty(game.items.x[i], game.items.y[i]);
+            }
+        }
+
+        // Only the glows that pulse, and only when their size actually changes
+        private void markAnimatedDirty() {
+            if (monsterGlowSize() != lastMonsterGlow) {
+                lastMonsterGlow = monsterGlowSize();
+                for (int i = 0; i < game.monsters.size; i++) {
+                    if (game.level.fov.isVisible(game.monsters.x[i], game.monsters.y[i])) {
+                        markTileDirty(game.monsters.x[i], game.monsters.y[i]);
                     }
                 }
             }
+            if (game.player.hp > 0 && playerGlowSize() != lastPlayerGlow) {
+                lastPlayerGlow = playerGlowSize();
+                markTileDirty(game.player.x, game.player.y);
+            }
+            if (profiler.visible) {
+                markDirty(8, 8, Profiler.WIDTH, Profiler.HEIGHT);
+            }
         }
 
-        private Point getRandomPointInRoom(Rectangle room) {
-            Random rand = new Random();
-            int x = rand.nextInt(Math.max(1, room.width - 2)) + room.x + 1;
-            int y = rand.nextInt(Math.max(1, room.height - 2)) + room.y + 1;
-            return new Point(x, y);
+        // Everything the player can see from (x, y), plus the half tile the light map blurs past it
+        private void markLightDirty(int x, int y) {
+            int reach = (FieldOfView.RADIUS + 1) * TILE_SIZE;
+            markDirty(screenX(x) + TILE_SIZE / 2 - reach, screenY(y) + TILE_SIZE / 2 - reach, reach * 2, reach * 2);
         }
 
-        private boolean isPositionFree(int x, int y) {
-            if (player.x == x && player.y == y) return false;
-            if (stairs.x == x && stairs.y == y) return false;
-            for (Monster m : monsters) {
-                if (m.x == x && m.y == y) return false;
+        private boolean isHudStale() {
+            return hudHp != game.player.hp || hudMaxHp != game.player.maxHp || hudAttack != game.player.attackPower
+                || hudPotions != game.player.potionCount || hudExperience != game.player.experience
+                || hudLevel != game.dungeonLevel || hudMessage != game.message
+                || replay != null && (hudReplayPosition != replay.position() || hudReplayRunning != isReplayRunning());
+        }
+
+        private void markTurnStart() {
+            turnStartX = game.player.x;
+            turnStartY = game.player.y;
+            markEntitiesDirty();
+        }
+
+        private void markTurnEnd() {
+            boolean moved = game.player.x != turnStartX || game.player.y != turnStartY;
+            if (moved || lightStale) {
+                updateLight();
+            }
+            updateCamera();
+            if (allDirty) return;
+            markEntitiesDirty();
+            if (moved || tileLayerLight != lightVersion) {
+                markLightDirty(turnStartX, turnStartY);
+                markLightDirty(game.player.x, game.player.y);
+            }
+            if (isHudStale()) {
+                markDirty(0, VIEW_PIXEL_HEIGHT, PANEL_WIDTH, PANEL_HEIGHT - VIEW_PIXEL_HEIGHT);
+            }
+        }
+
+        private void flushDirty() {
+            if (activeRendering) {
+                // Every frame is drawn in full anyway
+                allDirty = false;
+                dirtyCount = 0;
+                return;
+            }
+            profiler.endFrame(); // Anything Swing painted on its own since the last flush
+            if (allDirty) {
+                allDirty = false;
+                dirtyCount = 0;
+                repaint();
+                return;
             }
-            for (Item i : items) {
-                if (i.x == x && i.y == y) return false;
+            for (int i = 0; i < dirtyCount; i++) {
+                paintImmediately(dirty[i]);
+            }
+            dirtyCount = 0;
+            profiler.endFrame();
+        }
+
+        private void handleKeyPress(int keyCode) {
+            long start = System.nanoTime();
+            if (keyCode == KeyEvent.VK_F3) {
+                profiler.visible = !profiler.visible;
+                markAllDirty();
+            } else {
+                handleKey(keyCode);
             }
-            return true;
+            profiler.keyPressed(keyCode, start);
         }
 
-        private void handleKeyPress(int keyCode) {
-            int dx = 0, dy = 0;
-            switch (keyCode) {
+        private void handleKey(int keyCode) {
+            if (replay != null) {
+                if (keyCode == REPLAY_STEP) stepReplay(); else handleReplayKey(keyCode);
+                return;
+            }
+            boolean run = (keyCode & RUN) != 0;
+            switch (keyCode & ~RUN) {
                 case KeyEvent.VK_UP:
-                case KeyEvent.VK_W:    dy = -1; break;
+                case KeyEvent.VK_W:    move(Game.MOVE_UP, run); return;
                 case KeyEvent.VK_DOWN:
-                case KeyEvent.VK_S:    dy = 1;  break;
+                case KeyEvent.VK_S:    move(Game.MOVE_DOWN, run); return;
                 case KeyEvent.VK_LEFT:
-                case KeyEvent.VK_A:    dx = -1; break;
+                case KeyEvent.VK_A:    move(Game.MOVE_LEFT, run); return;
                 case KeyEvent.VK_RIGHT:
-                case KeyEvent.VK_D:    dx = 1;  break;
+                case KeyEvent.VK_D:    move(Game.MOVE_RIGHT, run); return;
                 case KeyEvent.VK_SPACE:
-                case KeyEvent.VK_H:
-                    if (player.hp > 0) player.usePotion();
-                    repaint();
-                    return;
+                case KeyEvent.VK_H:    play(Game.DRINK); return;
                 case KeyEvent.VK_R:
-                    if (player.hp <= 0) newGame();
-                    repaint();
+                    if (game.isOver()) startNewGame();
+                    return;
+                case KeyEvent.VK_F5:
+                    if (endless || game.isOver()) return;
+                    saveGame();
+                    game.message = "💾 Your journey is recorded. (F9 to return here)";
+                    markAllDirty();
+                    return;
+                case KeyEvent.VK_F9:
+                    if (endless) return;
+                    loadGame();
+                    markAllDirty();
                     return;
                 default: return;
             }
-
-            if (player.hp > 0) {
-                movePlayer(dx, dy);
-                if (player.hp > 0) {
-                    updateMonsters();
-                }
-            }
-            repaint();
         }
 
-        private void movePlayer(int dx, int dy) {
-            int nextX = player.x + dx;
-            int nextY = player.y + dy;
-
-            if (nextX < 0 || nextX >= MAP_WIDTH || nextY < 0 || nextY >= MAP_HEIGHT) {
-                return;
-            }
-
-            if (map[nextX][nextY] == Tile.WALL) {
-                message = "The ancient stone blocks your path...";
-                return;
-            }
-
-            for (Monster monster : new ArrayList<>(monsters)) {
-                if (monster.x == nextX && monster.y == nextY) {
-                    player.attack(monster);
-                    if (monster.hp <= 0) {
-                        message = "⚔ Victory! The creature falls before your might!";
-                        monsters.remove(monster);
-                        player.gainExperience(10);
-                    } else {
-                        monster.attack(player);
-                        message = "⚔ Battle rages! You strike but the enemy retaliates!";
-                        if (player.hp <= 0) {
-                            message = "💀 Your adventure ends here... Press R to begin anew.";
-                        }
-                    }
-                    return;
-                }
-            }
-            
-            player.x = nextX;
-            player.y = nextY;
-            message = "You tread carefully through the shadowy halls...";
-
-            Item itemToPickup = null;
-            for (Item item : items) {
-                if (item.x == player.x && item.y == player.y) {
-                    player.pickupItem(item);
-                    if (item.name.equals("Health Elixir")) {
-                        message = "✨ You discovered a healing elixir! (+20 HP)";
-                    } else if (item.name.equals("Power Crystal")) {
-                        message = "💎 A power crystal enhances your abilities! (+5 Attack)";
-                    }
-                    itemToPickup = item;
+        // Space pauses, Page Up/Down step a hundred inputs back or forward, Home goes back to the start
+        private void handleReplayKey(int keyCode) {
+            if (replay.length() == 0) return;
+            switch (keyCode & ~RUN) {
+                case KeyEvent.VK_SPACE:
+                    if (replayTimer.isRunning()) replayTimer.stop(); else replayTimer.start();
                     break;
-                }
-            }
-            if (itemToPickup != null) {
-                items.remove(itemToPickup);
+                case KeyEvent.VK_PAGE_UP:   seekReplay(replay.position() - 100); break;
+                case KeyEvent.VK_PAGE_DOWN: seekReplay(replay.position() + 100); break;
+                case KeyEvent.VK_HOME:      seekReplay(1); break;
+                default: return;
             }
+            markDirty(0, VIEW_PIXEL_HEIGHT, PANEL_WIDTH, PANEL_HEIGHT - VIEW_PIXEL_HEIGHT);
+        }
 
-            if (player.x == stairs.x && player.y == stairs.y) {
-                nextLevel();
+        private void stepReplay() {
+            markTurnStart();
+            if (!replay.step()) {
+                replayTimer.stop();
+                game.message = replay.divergence() == null ? "The recording ends here." : replay.divergence();
             }
+            markTurnEnd();
+            markDirty(0, VIEW_PIXEL_HEIGHT, PANEL_WIDTH, PANEL_HEIGHT - VIEW_PIXEL_HEIGHT); // The input counter
         }
 
-        private void updateMonsters() {
-            for (Monster monster : monsters) {
-                monster.moveTowards(player, map);
+        private void seekReplay(int target) {
+            replay.seek(Math.max(1, target));
+            lightStale = true;
+            markTurnStart();
+            markTurnEnd();
+            markAllDirty();
+        }
+
+        /**
+         * Advances animation time by one simulation step.
+         */
+        void update(long nanos) {
+            gameNanos += nanos;
+            gameTime = gameNanos / 1_000_000L;
+            game.updateChunks(); // Chunks that finished loading show up even while the player stands still
+            if (lightStale) {
+                updateLight();
+                markLightDirty(game.player.x, game.player.y);
             }
         }
 
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            Graphics2D g2d = (Graphics2D) g;
-            
+            render((Graphics2D) g);
+        }
+
+        /**
+         * Draws a frame (or the clipped part of it) into any Graphics, used by both paintComponent and the
+         * active render loop.
+         */
+        void render(Graphics2D g2d) {
             // Enable antialiasing for smooth graphics
             g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
             g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            if (g2d.getClipBounds(clipBounds) == null) {
+                clipBounds.setBounds(0, 0, PANEL_WIDTH, PANEL_HEIGHT);
+            }
 
+            long start = System.nanoTime();
             drawMap(g2d);
-            drawShadows(g2d);
+            long phase = profiler.lap(Profiler.MAP, start);
             drawEntities(g2d);
-            drawEffects(g2d);
+            phase = profiler.lap(Profiler.ENTITIES, phase);
             drawUI(g2d);
+            profiler.lap(Profiler.UI, phase);
+            profiler.lap(Profiler.FRAME, start);
+            if (profiler.visible) {
+                profiler.draw(g2d, 8, 8);
+            }
         }
 
         private void drawMap(Graphics2D g2d) {
-            for (int x = 0; x < MAP_WIDTH; x++) {
-                for (int y = 0; y < MAP_HEIGHT; y++) {
-                    Rectangle2D tile = new Rectangle2D.Float(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
-                    
-                    if (map[x][y] == Tile.FLOOR) {
-                        // Gradient floor with subtle variation
-                        Color baseColor = FLOOR_COLORS[Math.abs((x + y) % FLOOR_COLORS.length)];
-                        GradientPaint gradient = new GradientPaint(
-                            x * TILE_SIZE, y * TILE_SIZE, baseColor,
-                            (x + 1) * TILE_SIZE, (y + 1) * TILE_SIZE, 
-                            new Color(baseColor.getRed() + 10, baseColor.getGreen() + 10, baseColor.getBlue() + 15)
-                        );
-                        g2d.setPaint(gradient);
-                        g2d.fill(tile);
-                        
-                        // Subtle floor texture
-                        g2d.setColor(new Color(255, 255, 255, 5));
-                        if ((x + y) % 3 == 0) {
-                            g2d.drawLine(x * TILE_SIZE, y * TILE_SIZE, 
-                                        x * TILE_SIZE + TILE_SIZE/3, y * TILE_SIZE + TILE_SIZE/3);
-                        }
-                    } else {
-                        // Enhanced walls with depth
-                        Color baseWall = WALL_COLORS[Math.abs((x + y) % WALL_COLORS.length)];
-                        GradientPaint wallGradient = new GradientPaint(
-                            x * TILE_SIZE, y * TILE_SIZE, 
-                            new Color(baseWall.getRed() + 15, baseWall.getGreen() + 15, baseWall.getBlue() + 20),
-                            (x + 1) * TILE_SIZE, (y + 1) * TILE_SIZE, baseWall
-                        );
-                        g2d.setPaint(wallGradient);
-                        g2d.fill(new RoundRectangle2D.Float(x * TILE_SIZE, y * TILE_SIZE, 
-                                                          TILE_SIZE, TILE_SIZE, 4, 4));
-                        
-                        // Wall border for depth
-                        g2d.setColor(new Color(baseWall.getRed() - 20, baseWall.getGreen() - 20, 
-                                             baseWall.getBlue() - 25, 150));
-                        g2d.setStroke(new BasicStroke(1.5f));
-                        g2d.draw(new RoundRectangle2D.Float(x * TILE_SIZE + 1, y * TILE_SIZE + 1, 
-                                                          TILE_SIZE - 2, TILE_SIZE - 2, 4, 4));
-                    }
+            if (tileLayer == null || tileLayerCamX != camX || tileLayerCamY != camY || tileLayerLight != lightVersion) {
+                createTileLayer();
+            }
+            if (tileLayer != null) {
+                int x1 = Math.max(0, clipBounds.x), y1 = Math.max(0, clipBounds.y);
+                int x2 = Math.min(tileLayer.getWidth(), clipBounds.x + clipBounds.width);
+                int y2 = Math.min(tileLayer.getHeight(), clipBounds.y + clipBounds.height);
+                if (x1 < x2 && y1 < y2) {
+                    g2d.drawImage(tileLayer, x1, y1, x2, y2, x1, y1, x2, y2, null);
                 }
             }
         }
 
-        private void drawShadows(Graphics2D g2d) {
-            if (shadowLayer != null) {
-                g2d.drawImage(shadowLayer, 0, 0, null);
+        private void drawTile(Graphics2D g2d, TileMap map, int x, int y, int camX, int camY) {
+            // Shade and texture only depend on (x + y) % 3, so every tile is one of six pre-rendered sprites
+            g2d.drawImage(tileSprites[map.get(x, y)][Math.floorMod(x + y, 3)],
+                          (x - camX) * TILE_SIZE, (y - camY) * TILE_SIZE, null);
+        }
+
+        private BufferedImage createTileSprite(byte type, int variant) {
+            BufferedImage sprite = createCompatibleImage(TILE_SIZE, TILE_SIZE, Transparency.OPAQUE);
+            Graphics2D g2d = sprite.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(getBackground());
+            g2d.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            Rectangle2D tile = new Rectangle2D.Float(0, 0, TILE_SIZE, TILE_SIZE);
+
+            if (type == TileMap.FLOOR) {
+                // Gradient floor with subtle variation
+                Color baseColor = FLOOR_COLORS[variant];
+                GradientPaint gradient = new GradientPaint(
+                    0, 0, baseColor,
+                    TILE_SIZE, TILE_SIZE, 
+                    new Color(baseColor.getRed() + 10, baseColor.getGreen() + 10, baseColor.getBlue() + 15)
+                );
+                g2d.setPaint(gradient);
+                g2d.fill(tile);
+                
+                // Subtle floor texture
+                g2d.setColor(new Color(255, 255, 255, 5));
+                if (variant == 0) {
+                    g2d.drawLine(0, 0, TILE_SIZE/3, TILE_SIZE/3);
+                }
+            } else {
+                // Enhanced walls with depth
+                Color baseWall = WALL_COLORS[variant];
+                GradientPaint wallGradient = new GradientPaint(
+                    0, 0, 
+                    new Color(baseWall.getRed() + 15, baseWall.getGreen() + 15, baseWall.getBlue() + 20),
+                    TILE_SIZE, TILE_SIZE, baseWall
+                );
+                g2d.setPaint(wallGradient);
+                g2d.fill(new RoundRectangle2D.Float(0, 0, TILE_SIZE, TILE_SIZE, 4, 4));
+                
+                // Wall border for depth
+                g2d.setColor(new Color(baseWall.getRed() - 20, baseWall.getGreen() - 20, 
+                                     baseWall.getBlue() - 25, 150));
+                g2d.setStroke(new BasicStroke(1.5f));
+                g2d.draw(new RoundRectangle2D.Float(1, 1, TILE_SIZE - 2, TILE_SIZE - 2, 4, 4));
+
+                // Soft shadow on top of the wall
+                g2d.setColor(SHADOW_COLOR);
+                g2d.fillRoundRect(2, 2, TILE_SIZE - 4, TILE_SIZE - 4, 8, 8);
             }
+            g2d.dispose();
+            return sprite;
         }
 
         private void drawEntities(Graphics2D g2d) {
-            g2d.setFont(gameFont);
-            
-            // Animated stairs with pulsing glow
-            drawEntityWithGlow(g2d, "◉", stairs.x, stairs.y, STAIRS_COLOR, STAIRS_GLOW, 1.2f);
+            // Animated stairs with pulsing glow, remembered once found
+            if (game.stairs != null && game.map.isExplored(game.stairs.x, game.stairs.y)) {
+                drawEntityWithGlow(g2d, STAIRS_SPRITE, game.stairs.x, game.stairs.y, 1.2f);
+            }
+            if (game.upStairs != null) {
+                drawEntityWithGlow(g2d, UP_STAIRS_SPRITE, game.upStairs.x, game.upStairs.y, 0.8f);
+            }
             
-            // Items with gentle glow
-            for (Item item : items) {
-                Color glowColor = item.name.equals("Power Crystal") ? 
-                    new Color(180, 100, 255, 100) : ITEM_GLOW;
-                drawEntityWithGlow(g2d, String.valueOf(item.symbol), item.x, item.y, 
-                                 ITEM_COLOR, glowColor, 1.0f);
+            // Items with gentle glow, monsters with menacing glow, only those in sight
+            for (int i = 0; i < game.items.size; i++) {
+                if (!game.level.fov.isVisible(game.items.x[i], game.items.y[i])) continue;
+                GlowSprite sprite = game.items.type[i] == EntityStore.POWER_CRYSTAL ? CRYSTAL_SPRITE : HEALTH_SPRITE;
+                drawEntityWithGlow(g2d, sprite, game.items.x[i], game.items.y[i], 1.0f);
             }
 
-            // Monsters with menacing glow
-            for (Monster monster : monsters) {
-                float pulse = 0.8f + 0.2f * (float)Math.sin(gameTime * 0.008);
-                drawEntityWithGlow(g2d, "👹", monster.x, monster.y, MONSTER_COLOR, MONSTER_GLOW, pulse);
+            float pulse = monsterGlowSize() / 12f;
+            for (int i = 0; i < game.monsters.size; i++) {
+                if (!game.level.fov.isVisible(game.monsters.x[i], game.monsters.y[i])) continue;
+                drawEntityWithGlow(g2d, MONSTER_SPRITE, game.monsters.x[i], game.monsters.y[i], pulse);
             }
 
             // Player with heroic glow
-            if (player.hp > 0) {
-                float heroGlow = 1.0f + 0.15f * (float)Math.sin(gameTime * 0.005);
-                drawEntityWithGlow(g2d, "🛡", player.x, player.y, PLAYER_COLOR, PLAYER_GLOW, heroGlow);
+            if (game.player.hp > 0) {
+                drawEntityWithGlow(g2d, PLAYER_SPRITE, game.player.x, game.player.y, playerGlowSize() / 12f);
             } else {
                 // Player corpse
-                drawEntityWithGlow(g2d, "💀", player.x, player.y, Color.GRAY, 
-                                 new Color(100, 100, 100, 80), 1.0f);
+                drawEntityWithGlow(g2d, CORPSE_SPRITE, game.player.x, game.player.y, 1.0f);
             }
         }
 
-        private void drawEntityWithGlow(Graphics2D g2d, String symbol, int x, int y, 
-                                       Color color, Color glowColor, float intensity) {
-            int pixelX = x * TILE_SIZE + TILE_SIZE / 2;
-            int pixelY = y * TILE_SIZE + TILE_SIZE / 2;
-            
-            // Draw glow effect
-            int glowSize = (int)(12 * intensity);
-            for (int i = glowSize; i > 0; i--) {
-                int alpha = Math.max(0, Math.min(255, (int)(glowColor.getAlpha() * (1.0f - (float)i/glowSize))));
-                g2d.setColor(new Color(glowColor.getRed(), glowColor.getGreen(), 
-                                     glowColor.getBlue(), alpha));
-                g2d.fillOval(pixelX - i, pixelY - i, i * 2, i * 2);
+        private int monsterGlowSize() {
+            return (int)(12 * (0.8f + 0.2f * (float)Math.sin(gameTime * 0.008)));
+        }
+
+        private int playerGlowSize() {
+            return (int)(12 * (1.0f + 0.15f * (float)Math.sin(gameTime * 0.005)));
+        }
+
+        private void drawEntityWithGlow(Graphics2D g2d, GlowSprite sprite, int x, int y, float intensity) {
+            if (!isInView(x, y)) return;
+            int pixelX = screenX(x) + TILE_SIZE / 2;
+            int pixelY = screenY(y) + TILE_SIZE / 2;
+            if (!clipBounds.intersects(pixelX - GlowSprite.SIZE / 2, pixelY - GlowSprite.SIZE / 2, 
+                                       GlowSprite.SIZE, GlowSprite.SIZE)) {
+                return;
             }
-            
-            // Draw entity
-            g2d.setColor(color);
-            FontMetrics fm = g2d.getFontMetrics();
-            int textX = pixelX - fm.stringWidth(symbol) / 2;
-            int textY = pixelY + fm.getAscent() / 2 - 2;
-            
-            // Add subtle shadow to text
-            g2d.setColor(Color.BLACK);
-            g2d.drawString(symbol, textX + 1, textY + 1);
-            g2d.setColor(color);
-            g2d.drawString(symbol, textX, textY);
-        }
-
-        private void drawEffects(Graphics2D g2d) {
-            // Ambient lighting effect
-            RadialGradientPaint ambient = new RadialGradientPaint(
-                player.x * TILE_SIZE + TILE_SIZE/2, 
-                player.y * TILE_SIZE + TILE_SIZE/2,
-                TILE_SIZE * 6,
-                new float[]{0.0f, 0.7f, 1.0f},
-                new Color[]{
-                    new Color(100, 150, 200, 15),
-                    new Color(50, 100, 150, 8),
-                    new Color(0, 0, 0, 0)
+            g2d.drawImage(sprite.get((int)(12 * intensity)), 
+                         pixelX - GlowSprite.SIZE / 2, pixelY - GlowSprite.SIZE / 2, null);
+        }
+
+        /**
+         * A symbol with its glow, rendered once per glow size. The glow only depends on its integer size, so
+         * a handful of sprites covers every pulse step without any visible difference. The symbol itself
+         * comes from the glyph atlas.
+         */
+        class GlowSprite {
+            static final int SIZE = TILE_SIZE * 2;
+
+            private final String symbol;
+            private final String fallback; // Drawn when no font has the symbol
+            private final Color color;
+            private final Color glowColor;
+            private BufferedImage[] sprites = new BufferedImage[0];
+
+            GlowSprite(String symbol, String fallback, Color color, Color glowColor) {
+                this.symbol = symbol;
+                this.fallback = fallback;
+                this.color = color;
+                this.glowColor = glowColor;
+            }
+
+            BufferedImage get(int glowSize) {
+                glowSize = Math.max(0, Math.min(glowSize, SIZE / 2));
+                if (glowSize >= sprites.length) {
+                    sprites = Arrays.copyOf(sprites, glowSize + 1);
                 }
-            );
-            g2d.setPaint(ambient);
-            g2d.fillRect(0, 0, PANEL_WIDTH, MAP_HEIGHT * TILE_SIZE);
+                if (sprites[glowSize] == null) {
+                    sprites[glowSize] = render(glowSize);
+                }
+                return sprites[glowSize];
+            }
+
+            private BufferedImage render(int glowSize) {
+                BufferedImage sprite = createCompatibleImage(SIZE, SIZE, Transparency.TRANSLUCENT);
+                Graphics2D g2d = sprite.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                int center = SIZE / 2;
+
+                // Draw glow effect
+                for (int i = glowSize; i > 0; i--) {
+                    int alpha = Math.max(0, Math.min(255, (int)(glowColor.getAlpha() * (1.0f - (float)i/glowSize))));
+                    g2d.setColor(new Color(glowColor.getRed(), glowColor.getGreen(), 
+                                         glowColor.getBlue(), alpha));
+                    g2d.fillOval(center - i, center - i, i * 2, i * 2);
+                }
+
+                glyphs.draw(g2d, glyphs.cell(symbol, fallback, color), center, center);
+                g2d.dispose();
+                return sprite;
+            }
         }
 
         private void drawUI(Graphics2D g2d) {
-            int uiY = MAP_HEIGHT * TILE_SIZE;
-            int uiHeight = 120;
-            
+            if (clipBounds.y + clipBounds.height <= VIEW_PIXEL_HEIGHT) return;
+            if (hudLayer == null || isHudStale()) {
+                renderHud();
+            }
+            g2d.drawImage(hudLayer, 0, VIEW_PIXEL_HEIGHT, null);
+        }
+
+        private boolean isReplayRunning() {
+            return replayTimer != null && replayTimer.isRunning();
+        }
+
+        private void renderHud() {
+            int uiY = 0;
+            int uiHeight = PANEL_HEIGHT - VIEW_PIXEL_HEIGHT;
+            if (hudLayer == null) {
+                hudLayer = createCompatibleImage(PANEL_WIDTH, uiHeight, Transparency.TRANSLUCENT);
+            }
+
+            hudHp = game.player.hp;
+            hudMaxHp = game.player.maxHp;
+            hudAttack = game.player.attackPower;
+            hudPotions = game.player.potionCount;
+            hudExperience = game.player.experience;
+            hudLevel = game.dungeonLevel;
+            hudMessage = game.message;
+            hudReplayPosition = replay != null ? replay.position() : 0;
+            hudReplayRunning = isReplayRunning();
+
+            Graphics2D g2d = hudLayer.createGraphics();
+            try {
+                g2d.setComposite(AlphaComposite.Clear);
+                g2d.fillRect(0, 0, PANEL_WIDTH, uiHeight);
+                g2d.setComposite(AlphaComposite.SrcOver);
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                renderHud(g2d, uiY, uiHeight);
+            } finally {
+                g2d.dispose();
+            }
+        }
+
+        private void renderHud(Graphics2D g2d, int uiY, int uiHeight) {
             // Main UI background with gradient
             GradientPaint uiBg = new GradientPaint(0, uiY, UI_BG, 0, uiY + uiHeight, 
                                                  new Color(UI_BG.getRed(), UI_BG.getGreen(), 
@@ -481,27 +4818,30 @@ public class DungeonCrawler extends JFrame {
             // Stats
             g2d.setFont(titleFont);
             g2d.setColor(Color.WHITE);
-            g2d.drawString("Level " + dungeonLevel, 20, uiY + 70);
-            g2d.drawString("Attack: " + player.attackPower, 150, uiY + 70);
-            g2d.drawString("Potions: " + player.potionCount, 280, uiY + 70);
-            g2d.drawString("Experience: " + player.experience, 420, uiY + 70);
+            g2d.drawString("Level " + game.dungeonLevel, 20, uiY + 70);
+            g2d.drawString("Attack: " + game.player.attackPower, 150, uiY + 70);
+            g2d.drawString("Potions: " + game.player.potionCount, 280, uiY + 70);
+            g2d.drawString("Experience: " + game.player.experience, 420, uiY + 70);
 
             // Controls hint
             g2d.setFont(uiFont);
             g2d.setColor(new Color(200, 200, 200));
-            String controls = player.hp <= 0 ? "Press R to restart" : "WASD/Arrows: Move | Space/H: Use Potion";
+            String controls = replay != null
+                ? "Replay " + replay.position() + "/" + replay.length() + (isReplayRunning() ? "" : " (paused)")
+                  + " | Space, PgUp/PgDn, Home"
+                : game.player.hp <= 0 ? "Press R to restart, F9 to load" : "WASD/Arrows: Move | Space/H: Use Potion";
             g2d.drawString(controls, PANEL_WIDTH - 350, uiY + 70);
             
             // Message
             g2d.setFont(uiFont);
             g2d.setColor(new Color(255, 255, 150));
-            g2d.drawString(message, 20, uiY + 95);
+            g2d.drawString(game.message, 20, uiY + 95);
         }
 
         private void drawHealthBar(Graphics2D g2d, int x, int y) {
             int barWidth = 200;
             int barHeight = 20;
-            float healthPercent = (float) player.hp / player.maxHp;
+            float healthPercent = (float) game.player.hp / game.player.maxHp;
             
             // Background
             g2d.setColor(new Color(60, 60, 60));
@@ -515,9 +4855,9 @@ public class DungeonCrawler extends JFrame {
             
             GradientPaint healthGradient = new GradientPaint(
                 x, y, healthColor,
-                x, y + barHeight, new Color(healthColor.getRed() - 40, 
-                                           healthColor.getGreen() - 40, 
-                                           healthColor.getBlue() - 40)
+                x, y + barHeight, new Color(Math.max(0, healthColor.getRed() - 40), 
+                                           Math.max(0, healthColor.getGreen() - 40), 
+                                           Math.max(0, healthColor.getBlue() - 40))
             );
             g2d.setPaint(healthGradient);
             g2d.fillRoundRect(x, y, (int)(barWidth * healthPercent), barHeight, 10, 10);
@@ -529,7 +4869,7 @@ public class DungeonCrawler extends JFrame {
             
             // Health text
             g2d.setFont(titleFont);
-            String healthText = player.hp + "/" + player.maxHp + " HP";
+            String healthText = game.player.hp + "/" + game.player.maxHp + " HP";
             FontMetrics fm = g2d.getFontMetrics();
             int textX = x + (barWidth - fm.stringWidth(healthText)) / 2;
             int textY = y + (barHeight + fm.getAscent()) / 2 - 2;
@@ -539,210 +4879,5 @@ public class DungeonCrawler extends JFrame {
             g2d.setColor(Color.WHITE);
             g2d.drawString(healthText, textX, textY);
         }
-
-        // Game entity classes
-        enum Tile { WALL, FLOOR }
-
-        class Player {
-            int x, y;
-            int hp, maxHp;
-            int attackPower;
-            int potionCount;
-            int experience;
-
-            Player(int x, int y) {
-                this.x = x;
-                this.y = y;
-                this.maxHp = 100;
-                this.hp = maxHp;
-                this.attackPower = 12;
-                this.potionCount = 3;
-                this.experience = 0;
-            }
-
-            void attack(Monster target) {
-                target.hp -= this.attackPower;
-            }
-
-            void pickupItem(Item item) {
-                if (item.name.equals("Health Elixir")) {
-                    this.potionCount++;
-                    if (this.hp < this.maxHp * 0.7) {
-                        usePotion();
-                    }
-                } else if (item.name.equals("Power Crystal")) {
-                    this.attackPower += 5;
-                }
-            }
-
-            void usePotion() {
-                if (potionCount > 0 && hp < maxHp) {
-                    this.hp += 35;
-                    if (this.hp > this.maxHp) this.hp = this.maxHp;
-                    this.potionCount--;
-                    message = "✨ The elixir restores your vitality! (+35 HP)";
-                } else if (potionCount <= 0) {
-                    message = "You have no potions left!";
-                } else {
-                    message = "You are already at full health!";
-                }
-            }
-
-            void gainExperience(int exp) {
-                this.experience += exp;
-                if (this.experience >= 50 && this.experience < 60) {
-                    this.maxHp += 20;
-                    this.hp += 20;
-                    this.attackPower += 3;
-                    message += " You feel stronger! (+20 Max HP, +3 Attack)";
-                }
-            }
-        }
-
-        class Monster {
-            int x, y;
-            int hp, maxHp;
-            int attackPower;
-
-            Monster(int x, int y, int hp, int attackPower) {
-                this.x = x;
-                this.y = y;
-                this.maxHp = hp;
-                this.hp = hp;
-                this.attackPower = attackPower;
-            }
-
-            void attack(Player target) {
-                target.hp -= this.attackPower;
-            }
-
-            void moveTowards(Player player, Tile[][] map) {
-                int dx = Integer.compare(player.x, this.x);
-                int dy = Integer.compare(player.y, this.y);
-
-                int nextX = this.x + dx;
-                int nextY = this.y + dy;
-
-                if (nextX == player.x && nextY == player.y) {
-                    attack(player);
-                    message = "💥 The creature strikes with deadly force!";
-                    if (player.hp <= 0) message = "💀 You have fallen in battle! Press R to try again.";
-                    return;
-                }
-
-                if (nextX >= 0 && nextX < MAP_WIDTH && nextY >= 0 && nextY < MAP_HEIGHT) {
-                    if (map[nextX][this.y] == Tile.FLOOR) {
-                        this.x = nextX;
-                    } else if (map[this.x][nextY] == Tile.FLOOR) {
-                        this.y = nextY;
-                    }
-                }
-            }
-        }
-
-        class Item {
-            int x, y;
-            String name;
-            char symbol;
-
-            Item(int x, int y, String name, char symbol) {
-                this.x = x;
-                this.y = y;
-                this.name = name;
-                this.symbol = symbol;
-            }
-        }
-
-        // Map generation
-        class MapGenerator {
-            private final int width, height;
-            private final Tile[][] map;
-            private final List<Rectangle> rooms = new ArrayList<>();
-            private final Random rand = new Random();
-
-            public MapGenerator(int width, int height) {
-                this.width = width;
-                this.height = height;
-                this.map = new Tile[width][height];
-            }
-
-            public Tile[][] generateMap() {
-                for (int x = 0; x < width; x++) {
-                    for (int y = 0; y < height; y++) {
-                        map[x][y] = Tile.WALL;
-                    }
-                }
-
-                int maxRooms = 12;
-                for (int i = 0; i < maxRooms; i++) {
-                    int w = rand.nextInt(6) + 4;
-                    int h = rand.nextInt(6) + 4;
-                    int x = rand.nextInt(width - w - 1) + 1;
-                    int y = rand.nextInt(height - h - 1) + 1;
-
-                    Rectangle newRoom = new Rectangle(x, y, w, h);
-                    boolean failed = false;
-                    for (Rectangle otherRoom : rooms) {
-                        if (newRoom.intersects(otherRoom)) {
-                            failed = true;
-                            break;
-                        }
-                    }
-                    if (!failed) {
-                        carveRoom(newRoom);
-                        rooms.add(newRoom);
-                    }
-                }
-
-                for (int i = 0; i < rooms.size() - 1; i++) {
-                    Point center1 = rooms.get(i).getCenter();
-                    Point center2 = rooms.get(i + 1).getCenter();
-                    carveCorridor(center1, center2);
-                }
-
-                return map;
-            }
-
-            private void carveRoom(Rectangle room) {
-                for (int x = room.x; x < room.x + room.width; x++) {
-                    for (int y = room.y; y < room.y + room.height; y++) {
-                        map[x][y] = Tile.FLOOR;
-                    }
-                }
-            }
-
-            private void carveCorridor(Point p1, Point p2) {
-                int x = p1.x;
-                int y = p1.y;
-
-                while (x != p2.x) {
-                    map[x][y] = Tile.FLOOR;
-                    x += Integer.compare(p2.x, x);
-                }
-                while (y != p2.y) {
-                    map[x][y] = Tile.FLOOR;
-                    y += Integer.compare(p2.y, y);
-                }
-            }
-
-            public List<Rectangle> getRooms() {
-                return rooms;
-            }
-
-            public Point getRandomRoomCenter() {
-                if (rooms.isEmpty()) return new Point(width / 2, height / 2);
-                return rooms.get(rand.nextInt(rooms.size())).getCenter();
-            }
-        }
-
-        class Rectangle extends java.awt.Rectangle {
-            public Rectangle(int x, int y, int width, int height) {
-                super(x, y, width, height);
-            }
-
-            public Point getCenter() {
-                return new Point(x + width / 2, y + height / 2);
-            }
-        }
     }
 }
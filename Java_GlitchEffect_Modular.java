@@ -1,16 +1,41 @@
 
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /*
-  HOW TO USE - Written on Line 105 (At the end of Code)
+  HOW TO USE - Written at the end of Code
 */
 
 class GlitchyAnimation{
     static Random random = new Random();
     static int threshHoldStarting = 20;  // Can Change if you want how much time you want it to end (Starting) (Only Optional)
     static int threshHoldEnding = 31;    // Can Change if you want how much time you want it to end (Ending) (Only Optional)
+    static GlitchAlphabet alphabet = GlitchAlphabet.LATIN;   // Can Change to DIGITS, KATAKANA, BOX_DRAWING or your own (Only Optional)
 
 
     public static void play(String word){
@@ -37,40 +62,37 @@ class GlitchyAnimation{
     }
 
     
-    static char getRandomChar(){
-        String words = "abcdefghijklmnopqrstuvwxyz";
-
-        return words.charAt(random.nextInt(words.length()));
+    // Plays the same (word, seed) pair the same way every time, from a cached precomputed timeline
+    public static void play(String word, long seed){
+        GlitchTimeline.of(word, seed).replay(System.out);
     }
 
+    // Works on code points, so emoji and other scripts stay in one piece
     static String getRanWord(String word, String ranWord){
-        ArrayList<Character> wordSet = new ArrayList<>(); 
+        int[] target = word.codePoints().toArray();
+        int[] frame = ranWord == null ? new int[target.length] : Arrays.copyOf(ranWord.codePoints().toArray(), target.length);
 
-        for (int i = 0; i < word.length(); i++){
-            char currentChar = word.charAt(i);
+        scramble(target, frame, new boolean[target.length], random, alphabet);
 
-            if (ranWord != null &&
-                word.charAt(i)==ranWord.charAt(i) 
-                 ) {
-                    wordSet.add(currentChar);
-                }
-            else if (word.charAt(i) == ' '){
-                wordSet.add(' ');
-            } else if (word.charAt(i) >= 'a' && word.charAt(i) <= 'z'){
-                wordSet.add(getRandomChar());
-            } else if (word.charAt(i) >= 'A' && word.charAt(i) <= 'Z') {
-                wordSet.add(Character.toUpperCase(getRandomChar()));
-            } else {
-                wordSet.add(word.charAt(i));
-            }
-        }
+        return new String(frame, 0, frame.length);
+    }
+
+    // Same rules as getRanWord but works in place on frame (code points), so nothing is allocated per frame.
+    // Letters that aren't right yet get a random letter from the same group of the alphabet, everything else is copied.
+    // Marks every position that got a new letter in changed and returns how many did.
+    static int scramble(int[] word, int[] frame, boolean[] changed, Random random, GlitchAlphabet alphabet){
+        int count = 0;
 
-        StringBuilder stringBuilder = new StringBuilder();
-        for (char c : wordSet){
-            stringBuilder.append(c);
+        for (int i = 0; i < frame.length; i++){
+            int target = word[i];
+            int next = frame[i] == target ? target : alphabet.randomLike(target, random);
+
+            changed[i] = next != frame[i];
+            if (changed[i]) count++;
+            frame[i] = next;
         }
 
-        return stringBuilder.toString();
+        return count;
     }
 
     static void wait(int sec){
@@ -101,6 +123,797 @@ class GlitchyAnimation{
 
 
 
+/*
+  The letters the glitch picks from. A letter is swapped for a random letter from the SAME group (so lowercase
+  stays lowercase and katakana stays katakana), anything that isn't in the alphabet is left alone.
+  It works on code points, and the lookup tables are built once up front, so checking a letter is one table lookup
+  no matter which script it is.
+*/
+class GlitchAlphabet {
+    // Code points are looked up in 256 wide pages, pages with nothing in them all share one empty page
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+    private static final short[] EMPTY_PAGE = new short[1 << PAGE_BITS];
+
+    static final GlitchAlphabet LATIN = of("latin", "abcdefghijklmnopqrstuvwxyz", "ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+    static final GlitchAlphabet DIGITS = of("digits", "0123456789");
+    static final GlitchAlphabet KATAKANA = range("katakana", 0x30A1, 0x30FA);
+    static final GlitchAlphabet BOX_DRAWING = range("box-drawing", 0x2500, 0x257F);
+
+    final String name;
+    final String key;                  // The groups and their letters: alphabets with the same key scramble the same way
+    private final int[] symbols;       // Every group one after the other
+    private final byte[] groupOf;      // Which group each symbol is in
+    private final int[] groupStart;
+    private final int[] groupLength;
+    private final short[][] pages;     // Code point -> index in symbols + 1 (0 means it's not in the alphabet)
+
+    private GlitchAlphabet(String name, int[][] groups){
+        if (groups.length > Byte.MAX_VALUE) throw new IllegalArgumentException("Too many groups: " + groups.length);
+
+        this.name = name;
+        this.groupStart = new int[groups.length];
+        this.groupLength = new int[groups.length];
+        this.pages = new short[(Character.MAX_CODE_POINT >> PAGE_BITS) + 1][];
+        Arrays.fill(pages, EMPTY_PAGE);
+
+        int[] all = new int[0];
+        byte[] allGroups = new byte[0];
+        int size = 0;
+        for (int g = 0; g < groups.length; g++){
+            groupStart[g] = size;
+            for (int codePoint : groups[g]){
+                if (indexOf(codePoint) >= 0) continue;   // Already in an earlier group
+                if (size >= Short.MAX_VALUE) throw new IllegalArgumentException("Too many letters in " + name);
+
+                if (size == all.length){
+                    all = Arrays.copyOf(all, Math.max(64, size * 2));
+                    allGroups = Arrays.copyOf(allGroups, all.length);
+                }
+                all[size] = codePoint;
+                allGroups[size] = (byte) g;
+                size++;
+
+                int page = codePoint >> PAGE_BITS;
+                if (pages[page] == EMPTY_PAGE) pages[page] = new short[1 << PAGE_BITS];
+                pages[page][codePoint & PAGE_MASK] = (short) size;
+            }
+            groupLength[g] = size - groupStart[g];
+        }
+
+        this.symbols = Arrays.copyOf(all, size);
+        this.groupOf = Arrays.copyOf(allGroups, size);
+        this.key = Arrays.toString(groupLength) + new String(symbols, 0, size);
+    }
+
+    // Every string is its own group, e.g. of("hex", "0123456789abcdef")
+    static GlitchAlphabet of(String name, String... groups){
+        int[][] codePoints = new int[groups.length][];
+        for (int i = 0; i < groups.length; i++){
+            codePoints[i] = groups[i].codePoints().toArray();
+        }
+        return new GlitchAlphabet(name, codePoints);
+    }
+
+    // One group with every code point from first to last
+    static GlitchAlphabet range(String name, int first, int last){
+        int[] codePoints = new int[last - first + 1];
+        for (int i = 0; i < codePoints.length; i++){
+            codePoints[i] = first + i;
+        }
+        return new GlitchAlphabet(name, new int[][]{ codePoints });
+    }
+
+    // Both alphabets together, e.g. LATIN.with(DIGITS) also scrambles numbers
+    GlitchAlphabet with(GlitchAlphabet other){
+        int[][] groups = new int[groupStart.length + other.groupStart.length][];
+        for (int g = 0; g < groupStart.length; g++){
+            groups[g] = Arrays.copyOfRange(symbols, groupStart[g], groupStart[g] + groupLength[g]);
+        }
+        for (int g = 0; g < other.groupStart.length; g++){
+            groups[groupStart.length + g] = Arrays.copyOfRange(other.symbols, other.groupStart[g], other.groupStart[g] + other.groupLength[g]);
+        }
+        return new GlitchAlphabet(name + "+" + other.name, groups);
+    }
+
+    int size(){
+        return symbols.length;
+    }
+
+    int symbol(int index){
+        return symbols[index];
+    }
+
+    // Index of the code point in the alphabet, or -1 if it isn't in it
+    int indexOf(int codePoint){
+        return pages[codePoint >> PAGE_BITS][codePoint & PAGE_MASK] - 1;
+    }
+
+    // A random letter from the same group, or the code point itself if it's not in the alphabet
+    int randomLike(int codePoint, Random random){
+        int index = indexOf(codePoint);
+        if (index < 0) return codePoint;
+
+        int g = groupOf[index];
+        return symbols[groupStart[g] + random.nextInt(groupLength[g])];
+    }
+}
+
+
+
+/*
+  A whole animation worked out ahead of time for a (word, seed) pair. Per frame it only keeps the
+  positions and letters that changed, so replaying it is just copying a few code points around.
+*/
+class GlitchTimeline {
+    static final int MAX_CACHED = 64;   // How many timelines are kept around (least recently used ones go first)
+
+    private static final Map<String, GlitchTimeline> cache = new LinkedHashMap<>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GlitchTimeline> eldest){
+            return size() > MAX_CACHED;
+        }
+    };
+
+    final String word;
+    final long seed;
+    private final int length;         // In code points
+    private final int frameCount;
+    private final int[] frameStart;   // Frame f changed positions[frameStart[f] .. frameStart[f + 1])
+    private final int[] positions;
+    private final int[] codePoints;
+
+    private GlitchTimeline(String word, long seed, int frameCount, int[] frameStart, int[] positions, int[] codePoints){
+        this.word = word;
+        this.seed = seed;
+        this.length = word.codePointCount(0, word.length());
+        this.frameCount = frameCount;
+        this.frameStart = frameStart;
+        this.positions = positions;
+        this.codePoints = codePoints;
+    }
+
+    static GlitchTimeline of(String word, long seed){
+        return of(word, seed, GlitchyAnimation.alphabet);
+    }
+
+    static GlitchTimeline of(String word, long seed, GlitchAlphabet alphabet){
+        String key = seed + ":" + alphabet.key + ":" + word;
+
+        synchronized (cache){
+            GlitchTimeline timeline = cache.get(key);
+            if (timeline == null){
+                timeline = compute(word, seed, alphabet);
+                cache.put(key, timeline);
+            }
+            return timeline;
+        }
+    }
+
+    static GlitchTimeline compute(String word, long seed, GlitchAlphabet alphabet){
+        Builder builder = new Builder(word.length());
+        try {
+            generate(word, seed, alphabet, builder);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);   // Builder never throws, it only writes to arrays
+        }
+        return builder.build(word, seed);
+    }
+
+    int frameCount(){
+        return frameCount;
+    }
+
+    // Applies frame f on top of frame f - 1 (frame 0 fills in every position)
+    void applyFrame(int f, int[] frame){
+        for (int i = frameStart[f]; i < frameStart[f + 1]; i++){
+            frame[positions[i]] = codePoints[i];
+        }
+    }
+
+    void replay(PrintStream out){
+        int[] frame = new int[length];
+        StringBuilder line = new StringBuilder(word.length() + 1);
+
+        for (int f = 0; f < frameCount; f++){
+            applyFrame(f, frame);
+            line.setLength(0);
+            line.append('\r');
+            for (int codePoint : frame) line.appendCodePoint(codePoint);
+
+            GlitchyAnimation.wait(1);
+            out.append(line);
+            out.flush();
+        }
+
+        out.println();
+    }
+
+    void writeAsciicast(Path file) throws IOException {
+        try (AsciicastWriter writer = new AsciicastWriter(file, length)){
+            int[] frame = new int[length];
+            for (int f = 0; f < frameCount; f++){
+                applyFrame(f, frame);
+                writer.frame(frame);
+            }
+        }
+    }
+
+    // Records straight to disk while the frames get made, nothing but the current frame is kept in memory
+    static void record(String word, long seed, Path file) throws IOException {
+        try (AsciicastWriter writer = new AsciicastWriter(file, word.codePointCount(0, word.length()))){
+            generate(word, seed, GlitchyAnimation.alphabet, (frame, changed) -> writer.frame(frame));
+        }
+    }
+
+    interface FrameSink {
+        void frame(int[] frame, boolean[] changed) throws IOException;
+    }
+
+    // Same steps as GlitchyAnimation.play, but with its own seeded Random and without the waiting
+    static void generate(String text, long seed, GlitchAlphabet alphabet, FrameSink sink) throws IOException {
+        Random random = new Random(seed);
+        int[] word = text.codePoints().toArray();
+        int[] frame = new int[word.length];
+        boolean[] changed = new boolean[word.length];
+
+        GlitchyAnimation.scramble(word, frame, changed, random, alphabet);   // Like getRanWord(word, null), never shown
+
+        int attempt = 0;
+        int threshHold = random.nextInt(GlitchyAnimation.threshHoldStarting, GlitchyAnimation.threshHoldEnding);
+        boolean done;
+
+        do {
+            if (attempt >= threshHold){
+                for (int i = 0; i < frame.length; i++){
+                    changed[i] = frame[i] != word[i];
+                    frame[i] = word[i];
+                }
+            } else {
+                GlitchyAnimation.scramble(word, frame, changed, random, alphabet);
+            }
+            if (attempt == 0) Arrays.fill(changed, true);   // The first frame shows everything
+            attempt++;
+
+            sink.frame(frame, changed);
+
+            done = true;
+            for (int i = 0; i < frame.length && done; i++){
+                done = frame[i] == word[i];
+            }
+        } while (!done);
+    }
+
+    private static class Builder implements FrameSink {
+        private final List<Integer> starts = new ArrayList<>();
+        private int[] positions;
+        private int[] codePoints;
+        private int size;
+
+        Builder(int length){
+            positions = new int[Math.max(16, length * 4)];
+            codePoints = new int[positions.length];
+        }
+
+        @Override
+        public void frame(int[] frame, boolean[] changed){
+            starts.add(size);
+            for (int i = 0; i < frame.length; i++){
+                if (!changed[i]) continue;
+                if (size == positions.length){
+                    positions = Arrays.copyOf(positions, size * 2);
+                    codePoints = Arrays.copyOf(codePoints, size * 2);
+                }
+                positions[size] = i;
+                codePoints[size] = frame[i];
+                size++;
+            }
+        }
+
+        GlitchTimeline build(String word, long seed){
+            int[] frameStart = new int[starts.size() + 1];
+            for (int f = 0; f < starts.size(); f++){
+                frameStart[f] = starts.get(f);
+            }
+            frameStart[starts.size()] = size;
+
+            return new GlitchTimeline(word, seed, starts.size(), frameStart,
+                    Arrays.copyOf(positions, size), Arrays.copyOf(codePoints, size));
+        }
+    }
+}
+
+
+
+/*
+  Writes frames as an asciicast v2 file (https://docs.asciinema.org/manual/asciicast/v2/), one line per frame,
+  so recordings can be played back with asciinema.
+*/
+class AsciicastWriter implements Closeable {
+    private final Writer out;
+    private int frames;
+
+    AsciicastWriter(Path file, int width) throws IOException {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        out.write("{\"version\": 2, \"width\": " + Math.max(1, width) + ", \"height\": 1, \"timestamp\": "
+                + System.currentTimeMillis() / 1000 + "}\n");
+    }
+
+    void frame(int[] frame) throws IOException {
+        frames++;
+        event("\r" + new String(frame, 0, frame.length));
+    }
+
+    private void event(String data) throws IOException {
+        long millis = (long) frames * GlitchLabel.FRAME_DELAY;
+        out.write("[" + millis / 1000 + "." + String.format("%03d", millis % 1000) + ", \"o\", \"");
+        for (int i = 0; i < data.length(); i++){
+            char c = data.charAt(i);
+            if (c == '"' || c == '\\') out.write("\\" + c);
+            else if (c == '\r') out.write("\\r");
+            else if (c == '\n') out.write("\\n");
+            else if (c < 0x20) out.write(String.format("\\u%04x", (int) c));
+            else out.write(c);
+        }
+        out.write("\"]\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+        frames++;
+        event("\r\n");
+        out.close();
+    }
+}
+
+
+/*
+  Plays one animation to lots of outputs at once (like every session on a server). Each frame is worked out
+  and turned into bytes ONCE, then handed to every sink. Every sink has its own thread and a small queue, and
+  when a slow sink falls behind its oldest frames get dropped, so it never holds up the others.
+*/
+class GlitchBroadcaster implements Closeable {
+    static final int QUEUE_SIZE = 8;   // Frames a sink can fall behind before it starts skipping
+
+    private static final byte[] END = new byte[0];
+
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicLong droppedByRemoved = new AtomicLong();   // What the sinks no longer attached had skipped
+
+    void addSink(OutputStream out){
+        addSink(new Sink(out, null));
+    }
+
+    void addSink(WritableByteChannel channel){
+        addSink(new Sink(null, channel));
+    }
+
+    private void addSink(Sink sink){
+        sinks.add(sink);
+        sink.thread.start();
+    }
+
+    int sinkCount(){
+        return sinks.size();
+    }
+
+    // Frames the sinks had to skip because they fell more than QUEUE_SIZE frames behind, removed ones included
+    long droppedFrames(){
+        long dropped = droppedByRemoved.get();
+        for (Sink sink : sinks){
+            dropped += sink.dropped.get();
+        }
+        return dropped;
+    }
+
+    // Blocks like GlitchyAnimation.play, but every sink sees the animation
+    void play(String word){
+        play(word, GlitchyAnimation.random.nextLong());
+    }
+
+    void play(String word, long seed){
+        try {
+            GlitchTimeline.generate(word, seed, GlitchyAnimation.alphabet, (frame, changed) -> {
+                GlitchyAnimation.wait(1);
+                broadcast(("\r" + new String(frame, 0, frame.length)).getBytes(StandardCharsets.UTF_8));
+            });
+        } catch (IOException e){
+            throw new UncheckedIOException(e);   // Sinks deal with their own errors, so this never happens
+        }
+        broadcast("\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void broadcast(byte[] frame){
+        for (Sink sink : sinks){
+            if (sink.failed) remove(sink);
+            else sink.offer(frame);
+        }
+    }
+
+    // Lets every sink finish what it has queued, then stops the sink threads (the streams are left open)
+    @Override
+    public void close(){
+        for (Sink sink : sinks){
+            sink.offer(END);
+        }
+        for (Sink sink : sinks){
+            try {
+                sink.thread.join(1000);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            sink.thread.interrupt();
+            remove(sink);
+        }
+    }
+
+    private void remove(Sink sink){
+        if (sinks.remove(sink)) droppedByRemoved.addAndGet(sink.dropped.get());
+    }
+
+    private static class Sink implements Runnable {
+        private static final AtomicInteger count = new AtomicInteger();
+
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final OutputStream out;
+        final WritableByteChannel channel;
+        final Thread thread;
+        volatile boolean failed;
+        final AtomicInteger dropped = new AtomicInteger();
+
+        Sink(OutputStream out, WritableByteChannel channel){
+            this.out = out;
+            this.channel = channel;
+            thread = new Thread(this, "glitch-sink-" + count.getAndIncrement());
+            thread.setDaemon(true);
+        }
+
+        // Never blocks: if the queue is full the oldest frame makes room (every frame redraws the whole line anyway)
+        void offer(byte[] frame){
+            while (!queue.offer(frame)){
+                if (queue.poll() != null) dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run(){
+            try {
+                while (true){
+                    byte[] frame = queue.take();
+                    if (frame == END) return;
+
+                    if (channel != null){
+                        ByteBuffer buffer = ByteBuffer.wrap(frame);
+                        while (buffer.hasRemaining()) channel.write(buffer);
+                    } else {
+                        out.write(frame);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e){
+                failed = true;   // Gone (closed session, broken pipe...), the broadcaster drops it next frame
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+
+/*
+  Swing version of the same effect. Every GlitchLabel that is glitching and showing gets advanced by ONE
+  shared Timer (which stops when there are none), and the letters are copied out of a pre-rendered glyph atlas instead of drawString every frame.
+*/
+class GlitchLabel extends JLabel {
+    static final int FRAME_DELAY = 50;   // Same speed as GlitchyAnimation.wait(1)
+
+    private static final List<GlitchLabel> glitching = new ArrayList<>();
+    private static final Timer sharedTimer = new Timer(FRAME_DELAY, e -> tickAll());
+
+    private int[] word;    // Code points of the text
+    private int[] frame;
+    private boolean[] changed;
+    private GlitchAlphabet alphabet;
+    private int attempt;
+    private int threshHold;
+
+    // Where every letter goes, worked out again only when the size, font or text changes
+    private int[] slotX;
+    private int[] slotWidth;
+    private int textY, baseline, textHeight;
+    private int layoutWidth = -1, layoutHeight = -1;
+    private GlyphAtlas atlas;
+    private final Rectangle clip = new Rectangle();
+
+    GlitchLabel(String text){
+        super(text);
+        addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) showingChanged();
+        });
+    }
+
+    GlitchLabel(){
+        this("");
+    }
+
+    // Which letters get scrambled, GlitchyAnimation.alphabet if it's never set
+    void setAlphabet(GlitchAlphabet alphabet){
+        this.alphabet = alphabet;
+        invalidateLayout();
+    }
+
+    GlitchAlphabet getAlphabet(){
+        return alphabet != null ? alphabet : GlitchyAnimation.alphabet;
+    }
+
+    // Sets the text and glitches it in, just like GlitchyAnimation.play
+    void play(String text){
+        setText(text);
+
+        word = text.codePoints().toArray();
+        frame = new int[word.length];   // All 0 so every letter gets scrambled on the first tick
+        changed = new boolean[word.length];
+        attempt = 0;
+        threshHold = GlitchyAnimation.random.nextInt(GlitchyAnimation.threshHoldStarting, GlitchyAnimation.threshHoldEnding);
+        invalidateLayout();
+
+        if (isShowing()) startTicking();   // Otherwise once it's shown
+    }
+
+    boolean isGlitching(){
+        return frame != null;
+    }
+
+    @Override
+    public void setText(String text){
+        super.setText(text);
+        if (frame != null && !String.valueOf(text).equals(new String(word, 0, word.length))) stopGlitch();
+        invalidateLayout();
+    }
+
+    @Override
+    public void setFont(Font font){
+        super.setFont(font);
+        invalidateLayout();
+    }
+
+    @Override
+    public void setForeground(Color fg){
+        super.setForeground(fg);
+        invalidateLayout();
+    }
+
+    // Only labels on screen tick, so hidden or removed ones never keep the timer going (or the shared
+    // list keep them alive). One shown again while it was still glitching carries on where it left off.
+    private void showingChanged(){
+        if (!isShowing()) stopTicking();
+        else if (isGlitching()) startTicking();
+    }
+
+    @Override
+    public void removeNotify(){
+        super.removeNotify();
+        stopTicking();
+    }
+
+    private void startTicking(){
+        if (!glitching.contains(this)) glitching.add(this);
+        if (!sharedTimer.isRunning()) sharedTimer.start();
+    }
+
+    private void stopTicking(){
+        glitching.remove(this);
+        if (glitching.isEmpty()) sharedTimer.stop();
+    }
+
+    private static void tickAll(){
+        for (int i = glitching.size() - 1; i >= 0; i--){
+            GlitchLabel label = glitching.get(i);
+            if (!label.isShowing() || !label.advance()) glitching.remove(i);
+        }
+
+        if (glitching.isEmpty()) sharedTimer.stop();
+    }
+
+    // Moves this label one frame forward, returns false once the real text is showing
+    private boolean advance(){
+        if (frame == null) return false;
+
+        attempt++;
+
+        if (attempt >= threshHold){
+            repaintChanged(settle());
+            stopGlitch();
+            return false;
+        }
+
+        int count = GlitchyAnimation.scramble(word, frame, changed, GlitchyAnimation.random, getAlphabet());
+        repaintChanged(count > 0);
+        return true;
+    }
+
+    private boolean settle(){
+        boolean any = false;
+        for (int i = 0; i < frame.length; i++){
+            changed[i] = frame[i] != word[i];
+            any |= changed[i];
+        }
+        return any;
+    }
+
+    private void stopGlitch(){
+        word = null;
+        frame = null;
+        changed = null;
+    }
+
+    // Only repaints the strip between the first and the last letter that changed
+    private void repaintChanged(boolean any){
+        if (!any || !ensureLayout()) return;
+
+        int from = -1, to = -1;
+        for (int i = 0; i < changed.length; i++){
+            if (changed[i]){
+                if (from < 0) from = i;
+                to = i;
+            }
+        }
+        if (from < 0) return;
+
+        int x1 = slotX[from] - atlas.cellWidth;
+        int x2 = slotX[to] + slotWidth[to] + atlas.cellWidth;
+        repaint(x1, textY, x2 - x1, textHeight);
+    }
+
+    private void invalidateLayout(){
+        layoutWidth = -1;
+        atlas = null;
+    }
+
+    private boolean ensureLayout(){
+        String text = getText();
+        if (text == null || getFont() == null) return false;
+        if (layoutWidth == getWidth() && layoutHeight == getHeight() && atlas != null) return true;
+
+        FontMetrics fm = getFontMetrics(getFont());
+        Insets insets = getInsets();
+        Rectangle viewR = new Rectangle(insets.left, insets.top,
+                getWidth() - insets.left - insets.right, getHeight() - insets.top - insets.bottom);
+        Rectangle iconR = new Rectangle();
+        Rectangle textR = new Rectangle();
+        SwingUtilities.layoutCompoundLabel(this, fm, text, getIcon(), getVerticalAlignment(), getHorizontalAlignment(),
+                getVerticalTextPosition(), getHorizontalTextPosition(), viewR, iconR, textR, getIconTextGap());
+
+        int[] codePoints = text.codePoints().toArray();
+        slotX = new int[codePoints.length];
+        slotWidth = new int[codePoints.length];
+        int x = textR.x;
+        for (int i = 0; i < codePoints.length; i++){
+            slotX[i] = x;
+            slotWidth[i] = fm.charWidth(codePoints[i]);
+            x += slotWidth[i];
+        }
+
+        textY = textR.y;
+        textHeight = textR.height;
+        baseline = textR.y + fm.getAscent();
+        atlas = GlyphAtlas.get(getFont(), getForeground(), getAlphabet(), codePoints);
+        layoutWidth = getWidth();
+        layoutHeight = getHeight();
+        return true;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g){
+        if (frame == null || !ensureLayout()){
+            super.paintComponent(g);
+            return;
+        }
+
+        if (isOpaque()){
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+
+        g.getClipBounds(clip);
+        for (int i = 0; i < frame.length; i++){
+            if (slotX[i] + slotWidth[i] + atlas.cellWidth < clip.x || slotX[i] - atlas.cellWidth > clip.x + clip.width) continue;
+
+            // Random letters are centered in the slot of the real letter so the text doesn't wobble
+            int glyph = atlas.indexOf(frame[i]);
+            if (glyph < 0) continue;
+            int dx = slotX[i] + (slotWidth[i] - atlas.advance[glyph]) / 2 - atlas.padding;
+            int dy = baseline - atlas.ascent - atlas.padding;
+            int sx = glyph * atlas.cellWidth;
+            g.drawImage(atlas.image, dx, dy, dx + atlas.cellWidth, dy + atlas.cellHeight,
+                    sx, 0, sx + atlas.cellWidth, atlas.cellHeight, null);
+        }
+    }
+}
+
+
+
+/*
+  Every letter GlitchLabel can show, drawn ONCE into a single image for a font + color.
+  Labels with the same font, color and alphabet share it.
+*/
+class GlyphAtlas {
+    static final int MAX_CACHED = 16;   // Least recently used ones go first, like GlitchTimeline
+
+    private static final Map<String, GlyphAtlas> cache = new LinkedHashMap<>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GlyphAtlas> eldest){
+            return size() > MAX_CACHED;
+        }
+    };
+
+    final BufferedImage image;
+    final int[] advance;
+    final int cellWidth, cellHeight, ascent, padding;
+    private final GlitchAlphabet alphabet;   // The alphabet's letters come first, in its own order
+    private final int[] extra;               // Then whatever else the text has (spaces, punctuation, emoji...), sorted
+
+    private GlyphAtlas(Font font, Color color, GlitchAlphabet alphabet, int[] extra){
+        this.alphabet = alphabet;
+        this.extra = extra;
+
+        int count = alphabet.size() + extra.length;
+        advance = new int[count];
+
+        BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D sg = scratch.createGraphics();
+        FontMetrics fm = sg.getFontMetrics(font);
+        int widest = 0;
+        for (int i = 0; i < count; i++){
+            advance[i] = fm.charWidth(codePoint(i));
+            widest = Math.max(widest, advance[i]);
+        }
+        sg.dispose();
+
+        // A bit of padding so antialiased edges and italic overhangs don't get cut off
+        padding = Math.max(2, font.getSize() / 8);
+        ascent = fm.getAscent();
+        cellWidth = widest + padding * 2;
+        cellHeight = fm.getHeight() + padding * 2;
+
+        image = new BufferedImage(Math.max(1, cellWidth * count), cellHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+        g.setFont(font);
+        g.setColor(color);
+        for (int i = 0; i < count; i++){
+            g.drawString(new String(Character.toChars(codePoint(i))), i * cellWidth + padding, padding + ascent);
+        }
+        g.dispose();
+    }
+
+    static GlyphAtlas get(Font font, Color color, GlitchAlphabet alphabet, int[] text){
+        int[] extra = Arrays.stream(text).filter(c -> alphabet.indexOf(c) < 0).distinct().sorted().toArray();
+        String key = font + "|" + color.getRGB() + "|" + alphabet.key + "|" + new String(extra, 0, extra.length);
+
+        GlyphAtlas atlas = cache.get(key);
+        if (atlas == null){
+            atlas = new GlyphAtlas(font, color, alphabet, extra);
+            cache.put(key, atlas);
+        }
+        return atlas;
+    }
+
+    private int codePoint(int index){
+        return index < alphabet.size() ? alphabet.symbol(index) : extra[index - alphabet.size()];
+    }
+
+    int indexOf(int codePoint){
+        int i = alphabet.indexOf(codePoint);
+        if (i >= 0) return i;
+
+        i = Arrays.binarySearch(extra, codePoint);
+        return i < 0 ? -1 : alphabet.size() + i;
+    }
+}
+
+
 /*
                         HOW TO USE
 
@@ -110,6 +923,33 @@ GlitchyAnimation.play("Any Sentence here!");
 
 You can also call GlitchyAnimation.showLoadingEffect(); for a coool loading effect
 
+To scramble with other letters (works with any script and emoji, they're handled as whole code points):
+
+GlitchyAnimation.alphabet = GlitchAlphabet.KATAKANA;
+GlitchyAnimation.alphabet = GlitchAlphabet.LATIN.with(GlitchAlphabet.DIGITS);
+GlitchyAnimation.alphabet = GlitchAlphabet.of("hex", "0123456789abcdef");
+
+For Swing, use a GlitchLabel instead of a JLabel and call play on it (on the EDT):
+
+GlitchLabel titleLabel = new GlitchLabel();
+titleLabel.play("CID ENCRYPTION DASHBOARD");
+
+If the same banner plays again and again, give it a seed. The frames get worked out once and cached,
+and you can save them as an asciicast recording too:
+
+GlitchyAnimation.play("Any Sentence here!", 42);
+GlitchTimeline.record("Any Sentence here!", 42, Path.of("banner.cast"));
+
+To show one animation on many outputs (sockets, channels, or PipedOutputStreams if you want to try it locally):
+
+GlitchBroadcaster broadcaster = new GlitchBroadcaster();
+broadcaster.addSink(System.out);
+broadcaster.addSink(socket.getOutputStream());
+broadcaster.play("Any Sentence here!");
+broadcaster.close();
+
+A sink that can't keep up skips frames instead of holding the others back, broadcaster.droppedFrames() says how many.
+
 
 
 This was all made BY AJAY Kumar (Ajeyyyyyyyyyy Yayyyyyy :D)